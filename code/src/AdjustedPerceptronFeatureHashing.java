@@ -3,8 +3,6 @@
  */
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.Random;
 
 
@@ -18,10 +16,17 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
     private int num_updates;
     private double learningRate;
     private double bias;
-    private double[] weights; //weights[i]: The weight for n-grams that hash to value i
+    private DoubleStorage weights; //scale * weights.get(i): The weight for n-grams that hash to value i
+    private double scale = 1; // the factor of all the weights, so the L2 term updates them all in O(1)
+    private int[] buckets = new int[256];      // scratch: the distinct buckets of the n-grams of a mail
+    private int[] bucketCounts = new int[256]; // scratch: bucketCounts[f] is the number of n-grams in buckets[f]
     private double sum_error;
+    private boolean diverged = false; // a step was not finite, see diverge()
     private Random rand;
     private int seed;
+
+    private static final double MAX_SCALE = 1e100; // beyond this (or below its inverse), the scale is folded into the weights
+    private static final double MIN_PROBABILITY = 1e-15; // the probabilities of the log loss are clamped to [1e-15, 1-1e-15]
     /* FILL IN HERE */
 
     /**
@@ -37,18 +42,7 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
      * @param learningRate The size of the updates of the weights
      */
     public AdjustedPerceptronFeatureHashing(int logNbOfBuckets, double learningRate){
-        this.logNbOfBuckets=logNbOfBuckets;
-        this.learningRate = learningRate;
-        this.nbOfBuckets=((int) Math.pow(2, logNbOfBuckets));
-        this.sum_error = 0;
-        this.num_updates = 0;
-        bias = 0;
-        weights = new double[this.nbOfBuckets];
-        this.seed = (int) Math.random() * 1000;
-        // here we initialize the weights to random values between 0 and 1
-        for (int i = 0; i < this.nbOfBuckets; i++) {
-            weights[i] = 0;//Math.random();
-        }
+        this(logNbOfBuckets, learningRate, 0);
     }
 
         /**
@@ -64,20 +58,52 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
      * @param learningRate The size of the updates of the weights
      */
     public AdjustedPerceptronFeatureHashing(int logNbOfBuckets, double learningRate, double threshold){
+        this(logNbOfBuckets, learningRate, threshold, DEFAULT_SEED);
+    }
+
+    /**
+     * Initialize the perceptron classifier
+     *
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^NbOfBuckets-1]
+     * @param learningRate The size of the updates of the weights
+     * @param threshold The threshold for a positive prediction
+     * @param seed The seed of the hash function and of the weight dropout
+     */
+    public AdjustedPerceptronFeatureHashing(int logNbOfBuckets, double learningRate, double threshold, int seed){
+        this(logNbOfBuckets, learningRate, threshold, seed, false);
+    }
+
+    /**
+     * Initialize the perceptron classifier
+     *
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^NbOfBuckets-1]
+     * @param learningRate The size of the updates of the weights
+     * @param threshold The threshold for a positive prediction
+     * @param seed The seed of the hash function and of the weight dropout
+     * @param offHeap If true, the weights are stored outside the Java heap, see DoubleStorage.offHeap()
+     */
+    public AdjustedPerceptronFeatureHashing(int logNbOfBuckets, double learningRate, double threshold, int seed,
+                                            boolean offHeap){
+        // here we initialize the weights to 0
+        this(logNbOfBuckets, learningRate, threshold, seed, DoubleStorage.allocate(1 << logNbOfBuckets, offHeap));
+    }
+
+    /**
+     * Initialize the perceptron classifier with the given weights
+     */
+    private AdjustedPerceptronFeatureHashing(int logNbOfBuckets, double learningRate, double threshold, int seed,
+                                             DoubleStorage weights){
         this.logNbOfBuckets=logNbOfBuckets;
         this.learningRate = learningRate;
         this.nbOfBuckets=((int) Math.pow(2, logNbOfBuckets));
         this.sum_error = 0;
         this.num_updates = 0;
         this.threshold = threshold;
-        this.seed = (int) Math.random() * 1000;
+        this.seed = seed;
+        this.rand = new Random(seed);
 
         bias = 0;
-        weights = new double[this.nbOfBuckets];
-        // here we initialize the weights to random values between 0 and 1
-        for (int i = 0; i < this.nbOfBuckets; i++) {
-            weights[i] = 0;//Math.random();
-        }
+        this.weights = weights;
     }
 
     /**
@@ -92,11 +118,20 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
      */
     public int hash(String str){
     	
-    	int v = HelperFunctions.posMod(MurmurHash.hash32(str, seed), nbOfBuckets);
-        return v;
+    	return hash(NgramHash.fingerprint(str));
         
     }
 
+    /**
+     * Calculate the hash value for the fingerprint of an n-gram
+     *
+     * @param fingerprint The fingerprint of the n-gram (see NgramHash)
+     * @return the hash value, in the range [0,2^NbOfBuckets-1]
+     */
+    public int hash(long fingerprint){
+    	return (int) NgramHash.mix(fingerprint, seed) & (nbOfBuckets - 1);
+    }
+
     /**
      * This method will update the parameters of your model using the incoming mail.
      *
@@ -110,78 +145,48 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
         
         
         int feature_label = labeledText.label;
-        int gradient_direction;
         if (feature_label == 0) {
-            gradient_direction = -1;
             feature_label = -1;
-        } else {
-            gradient_direction = 1;
         }
         
         this.num_updates += 1;
         
-        int hashValue;
-
-        double[] feature_vector = new double[this.nbOfBuckets];
-        Set<String> feature_ngrams = labeledText.text.ngrams;
-
-        for (int i = 0; i < this.nbOfBuckets; i++) {
-            feature_vector[i] = 0;
-        }
-        
-        for (String ngram: feature_ngrams) {
-            hashValue = hash(ngram);
-            feature_vector[hashValue] += 1;
-        }
+        long[] feature_ngrams = labeledText.text.getFingerprints();
+        int nbOfFeatures = findFeatures(feature_ngrams);
         
-        double weighted_sum = 0;
-        double probabilityOfSpam = 0;
-        for (int feature_i = 0; feature_i < this.nbOfBuckets; feature_i ++) {
-            weighted_sum += feature_vector[feature_i] * this.weights[feature_i];
-        }
+        double weighted_sum = weightedSum(nbOfFeatures);
         weighted_sum += bias;
         
-        int prediction;
-        if (this.threshold != 0.0) {
-            probabilityOfSpam = sigmoid_activation(weighted_sum);
-            prediction = super.classify(probabilityOfSpam);
-        } else {
-            prediction = super.classify(weighted_sum);
-        }
-        //System.out.println(Double.toString(weighted_sum));
-        //double probabilityOfSpam = sigmoid_activation(weighted_sum);
-        
-        if (prediction == 0) {
-            prediction = -1;
-        }
-        
-        // use the log loss as a better loss function than delta rule
+        // use the log loss as a better loss function than delta rule. It is the loss of the probability of spam: the
+        // loss of the predicted class is NaN or infinite on every mistake. Its gradient to the weighted sum is
+        // label - probabilityOfSpam. Without a threshold, this is the perceptron rule on the predicted class.
+        double error;
+        double step;
         if (this.threshold != 0.0) {
-            double error = log_loss(feature_label, probabilityOfSpam);
-            double error_grad = feature_label - probabilityOfSpam;
+            double probabilityOfSpam = sigmoid_activation(weighted_sum);
+            error = log_loss(labeledText.label, probabilityOfSpam);
+            step = this.learningRate * (labeledText.label - probabilityOfSpam);
         } else {
-            double error = 1.0;
-            double error_grad = feature_label - prediction;
+            int prediction = super.classify(weighted_sum) == 1 ? 1 : -1;
+            error = feature_label == prediction ? 0 : 1;
+            step = this.learningRate * (feature_label - prediction);
         }
-        double error = log_loss(feature_label, prediction);
-        double error_grad = feature_label - prediction;
         this.sum_error += Math.pow(error, 2);
         double lambda = 0.01;
-        int m = 1;
         // updating the weights, with an L2 penalty
-	bias = bias + this.learningRate * error;
-        //double L2_regularization_penalty = 0;
-	//for (int weight_i = 0; weight_i < this.nbOfBuckets; weight_i++) {
-        //    L2_regularization_penalty +=  Math.pow(weights[weight_i], 2);
-        //}  
-        //L2_regularization_penalty *= lambda / (2 * m);
+        bias = bias + step;
         
-	for (int feature_i = 0; feature_i < this.nbOfBuckets; feature_i++) {
-            if (this.threshold != 0.0) {
-                weights[feature_i] = weights[feature_i] + this.learningRate * error * error_grad *  sigmoid_activation_derivative(weighted_sum) * feature_vector[feature_i] + lambda * weights[feature_i];
-            } else {
-                weights[feature_i] = weights[feature_i] + this.learningRate * error * error_grad * feature_vector[feature_i] + lambda * weights[feature_i];
-            }
+        // weights = weights + step * feature_vector - learningRate * lambda * weights, where feature_vector is 0
+        // outside the buckets of the mail: the L2 term only changes the scale, the step only changes the weights of
+        // the mail
+        if (!Double.isFinite(step)) {
+            diverge();
+        } else if (!diverged) {
+            scale *= 1 - this.learningRate * lambda;
+            for (int f = 0; f < nbOfFeatures; f++)
+                weights.add(buckets[f], step * bucketCounts[f] / scale);
+            if (scale > MAX_SCALE || scale < 1 / MAX_SCALE)
+                foldScale();
         }
         
         if (this.num_updates >= 10000) {
@@ -190,7 +195,7 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
 
             for (int weight_i = 0; weight_i < numWeightsDrop; weight_i++) {
                 int drop = rand.nextInt(this.nbOfBuckets);
-                weights[drop] = 0;
+                weights.set(drop, 0);
             }
             this.num_updates = 0;
         }
@@ -198,6 +203,58 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
         				     
     }
 
+    /**
+     * Finds the buckets of the n-grams of a mail, the non-zero entries of its feature vector
+     *
+     * @param ngrams The fingerprints of the n-grams of the mail
+     * @return The number of distinct buckets, which are put in buckets, with their counts in bucketCounts
+     */
+    private int findFeatures(long[] ngrams) {
+        if (buckets.length < ngrams.length) {
+            buckets = new int[Math.max(ngrams.length, 2 * buckets.length)];
+            bucketCounts = new int[buckets.length];
+        }
+        for (int i = 0; i < ngrams.length; i++)
+            buckets[i] = hash(ngrams[i]);
+        return HelperFunctions.countDistinct(buckets, ngrams.length, bucketCounts);
+    }
+
+    /**
+     * @param nbOfFeatures The number of buckets found by findFeatures
+     * @return The inner product of the feature vector and the weights
+     */
+    private double weightedSum(int nbOfFeatures) {
+        if (diverged)
+            return Double.NaN; // 0 * NaN is NaN, so the buckets without n-grams make the sum NaN
+        double weighted_sum = 0;
+        for (int f = 0; f < nbOfFeatures; f++)
+            weighted_sum += bucketCounts[f] * this.weights.get(buckets[f]);
+        return scale * weighted_sum;
+    }
+
+    /**
+     * Applies a step that is not finite, which only happens once the weights have overflowed. Then step * 0 is NaN as well, so it makes every weight NaN (the weights of
+     * the mail become NaN or infinite), and every later weighted sum NaN. The weights are set to NaN once, in
+     * O(2^logNbOfBuckets), and the weighted sums are NaN from then on without looking at them.
+     */
+    private void diverge() {
+        if (diverged)
+            return;
+        for (int i = 0; i < this.nbOfBuckets; i++)
+            weights.set(i, Double.NaN);
+        scale = 1;
+        diverged = true;
+    }
+
+    /**
+     * Multiplies the weights with the scale and resets the scale to 1, in O(2^logNbOfBuckets)
+     */
+    private void foldScale() {
+        for (int i = 0; i < this.nbOfBuckets; i++)
+            weights.set(i, weights.get(i) * scale);
+        scale = 1;
+    }
+
     public static double sigmoid_activation(double x) {
         return (1/( 1 + Math.pow(Math.E,(-1*x))));
     }
@@ -211,6 +268,8 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
     }
     
     public static double log_loss(int y, double p) {
+        // the sigmoid rounds to 0 or 1 beyond |x| > 37, where the loss would be infinite
+        p = Math.min(Math.max(p, MIN_PROBABILITY), 1 - MIN_PROBABILITY);
         if (y == 1) {
             return -Math.log(p);
         } else {
@@ -218,6 +277,39 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
         }
     }
     
+    @Override
+    protected void writeModel(ModelSnapshot.Writer out) throws IOException {
+        out.writeInt(logNbOfBuckets);
+        out.writeInt(seed);
+        out.writeDouble(learningRate);
+        out.writeDouble(bias);
+        out.writeDouble(sum_error);
+        out.writeInt(num_updates);
+        out.writeDouble(scale);
+        out.writeDoubles(weights);
+    }
+
+    /**
+     * Reads the parameters that writeModel() wrote, see OnlineTextClassifier.load()
+     */
+    static AdjustedPerceptronFeatureHashing readModel(ModelSnapshot.Reader in) throws IOException {
+        int logNbOfBuckets = in.readInt();
+        int seed = in.readInt();
+        double learningRate = in.readDouble();
+        double bias = in.readDouble();
+        double sum_error = in.readDouble();
+        int num_updates = in.readInt();
+        double scale = in.readDouble();
+        AdjustedPerceptronFeatureHashing perceptron = new AdjustedPerceptronFeatureHashing(logNbOfBuckets, learningRate, 0,
+                seed, in.readDoubles(1 << logNbOfBuckets));
+        perceptron.bias = bias;
+        perceptron.sum_error = sum_error;
+        perceptron.num_updates = num_updates;
+        perceptron.scale = scale;
+        perceptron.diverged = Double.isNaN(perceptron.weights.get(0)); // see diverge()
+        return perceptron;
+    }
+
     /**
      * Uses the current model to make a prediction about the incoming e-mail belonging to class "1" (spam)
      * If the prediction is positive, then the e-mail is classified as spam.
@@ -232,20 +324,11 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
     @Override
     public double makePrediction(ParsedText text) {
         double pr = 0;
-        int hashValue;
 
-        double[] feature_vector = new double[this.nbOfBuckets];
-        Set<String> feature_ngrams = text.ngrams;
+        long[] feature_ngrams = text.getFingerprints();
+        int nbOfFeatures = findFeatures(feature_ngrams);
         
-        for (String ngram: feature_ngrams) {
-            hashValue = hash(ngram);
-            feature_vector[hashValue] += 1;
-        }
-        
-        double weighted_sum = 0;
-        for (int feature_i = 0; feature_i < this.nbOfBuckets; feature_i ++) {
-            weighted_sum += feature_vector[feature_i] * this.weights[feature_i];
-        }
+        double weighted_sum = weightedSum(nbOfFeatures);
         weighted_sum += bias;
 
         if (this.threshold != 0) {
@@ -261,9 +344,9 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
      * This runs your code.
      */
     public static void main(String[] args) throws IOException {
-        if (args.length < 7) {
-            System.err.println("Usage: java PerceptronFeatureHashing <indexPath> <stopWordsPath> <logNbOfBuckets> <threshold> <learningRate> <outPath> <reportingPeriod> <maxN> [-writeOutAllPredictions]");
-            throw new Error("Expected 7 or 8 arguments, got " + args.length + ".");
+        if (args.length < 8) {
+            System.err.println("Usage: java AdjustedPerceptronFeatureHashing <indexPath> <stopWordsPath> <logNbOfBuckets> <threshold> <learningRate> <outPath> <reportingPeriod> <maxN> [-writeOutAllPredictions] [-binaryPredictions] [-roc] [-window=<n> [-halfLife=<n>] [-monitorPeriod=<n>]] [-parseThreads=<n>] [-hashNgrams] [-seed=<n>] [-save=<modelPath>] [-offHeap]");
+            throw new Error("Expected at least 8 arguments, got " + args.length + ".");
         }
         try {
             // parse input
@@ -275,13 +358,24 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
             String out = args[5];
             int reportingPeriod = Integer.parseInt(args[6]);
             int n = Integer.parseInt(args[7]);
-            boolean writeOutAllPredictions = args.length>8 && args[8].equals("-writeOutAllPredictions");
+            boolean writeOutAllPredictions = HelperFunctions.hasFlag(args, 8, "-writeOutAllPredictions");
+            boolean binaryPredictions = HelperFunctions.hasFlag(args, 8, "-binaryPredictions");
+            boolean roc = HelperFunctions.hasFlag(args, 8, "-roc");
+            int windowSize = HelperFunctions.getIntOption(args, 8, "-window", 0);
+            int halfLife = HelperFunctions.getIntOption(args, 8, "-halfLife", windowSize);
+            int monitorPeriod = HelperFunctions.getIntOption(args, 8, "-monitorPeriod", reportingPeriod);
+            int nbOfParseThreads = HelperFunctions.getIntOption(args, 8, "-parseThreads", 1);
+            boolean hashNgrams = HelperFunctions.hasFlag(args, 8, "-hashNgrams");
+            int seed = HelperFunctions.getIntOption(args, 8, "-seed", DEFAULT_SEED);
+            boolean offHeap = HelperFunctions.hasFlag(args, 8, "-offHeap");
+            String modelPath = HelperFunctions.getStringOption(args, 8, "-save", null);
 
-            // initialize e-mail stream
-            MailStream stream = new MailStream(indexPath, new EmlParser(stopWordsPath,n));
+            // initialize e-mail stream (an index or a compiled corpus)
+            MailStream stream = MailStream.open(indexPath, stopWordsPath, n, nbOfParseThreads, hashNgrams);
 
             // initialize learner
-            PerceptronFeatureHashing perceptron = new PerceptronFeatureHashing(logNbOfBuckets, learningRate);
+            AdjustedPerceptronFeatureHashing perceptron = new AdjustedPerceptronFeatureHashing(logNbOfBuckets, learningRate,
+                    threshold, seed, offHeap);
 
             // generate output for the learning curve
             EvaluationMetric[] evaluationMetrics = new EvaluationMetric[5]; //ADD AT LEAST TWO MORE EVALUATION METRICS
@@ -290,7 +384,19 @@ public class AdjustedPerceptronFeatureHashing extends OnlineTextClassifier{
             evaluationMetrics[2] = new Precision();
             evaluationMetrics[3] = new F1Score();
             evaluationMetrics[4] = new BalancedAccuracy();
-            perceptron.makeLearningCurve(stream, evaluationMetrics, out+".adpfh", reportingPeriod, writeOutAllPredictions);
+            ScoreHistogram scores = roc ? new ScoreHistogram() : null;
+            WindowedEvaluation monitor = windowSize > 0
+                    ? new WindowedEvaluation(evaluationMetrics, windowSize, halfLife, monitorPeriod, out+".adpfh") : null;
+            try {
+                perceptron.makeLearningCurve(stream, evaluationMetrics, out+".adpfh", reportingPeriod, writeOutAllPredictions, binaryPredictions, scores, monitor);
+            } finally {
+                if (monitor != null)
+                    monitor.close();
+            }
+            if (roc)
+                scores.writeCurves(out+".adpfh", evaluationMetrics);
+            if (modelPath != null)
+                perceptron.save(modelPath);
 
         } catch (FileNotFoundException e) {
             System.err.println(e.toString());
@@ -0,0 +1,464 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+
+/**
+ * This class holds micro-benchmarks of the hot paths of the classifiers.
+ *
+ * Every benchmark runs a number of warm-up rounds, so that the JIT compiler has compiled the code, and then reports
+ * the median time per operation over the measured rounds. The result of every round is folded into a sink, so the
+ * JIT compiler can not remove the measured code.
+ *
+ * Usage: java Benchmarks [name...], without names all the benchmarks run.
+ */
+public class Benchmarks {
+
+    private static final int WARMUP_ROUNDS = 50;
+    private static final int MEASURED_ROUNDS = 50;
+
+    private static long sink = 0;
+
+    public static void main(String[] args) {
+        boolean all = args.length == 0;
+        if (all || Arrays.asList(args).contains("murmur"))
+            murmur();
+        if (all || Arrays.asList(args).contains("cms"))
+            countMinSketch();
+        if (all || Arrays.asList(args).contains("nbupdate"))
+            concurrentUpdates();
+        if (all || Arrays.asList(args).contains("snapshot"))
+            snapshots();
+        if (all || Arrays.asList(args).contains("logtable"))
+            logTable();
+        if (all || Arrays.asList(args).contains("sink"))
+            predictionWriters();
+        if (all || Arrays.asList(args).contains("monitor"))
+            monitor();
+        if (all || Arrays.asList(args).contains("adpfh"))
+            adjustedPerceptronUpdates();
+        System.out.println("(sink " + sink + ")");
+    }
+
+    /**
+     * Hashing an n-gram: from the bytes of String.getBytes(), from the String itself and from a char[] slice.
+     */
+    private static void murmur() {
+        System.out.println("murmur: 64-bit hash of 10000 n-grams of 1 to 3 words");
+        Random random = new Random(42);
+        String[] ngrams = new String[10000];
+        for (int i = 0; i < ngrams.length; i++) {
+            StringBuilder ngram = new StringBuilder();
+            int nbOfWords = 1 + random.nextInt(3);
+            for (int w = 0; w < nbOfWords; w++) {
+                if (w > 0)
+                    ngram.append(' ');
+                int length = 3 + random.nextInt(8);
+                for (int c = 0; c < length; c++)
+                    ngram.append((char) ('a' + random.nextInt(26)));
+            }
+            ngrams[i] = ngram.toString();
+        }
+
+        // the n-grams back to back in one buffer, like the tokenizer holds the words of a text
+        int[] offsets = new int[ngrams.length + 1];
+        for (int i = 0; i < ngrams.length; i++)
+            offsets[i + 1] = offsets[i] + ngrams[i].length();
+        char[] buffer = new char[offsets[ngrams.length]];
+        for (int i = 0; i < ngrams.length; i++)
+            ngrams[i].getChars(0, ngrams[i].length(), buffer, offsets[i]);
+
+        for (String ngram : ngrams) {
+            byte[] bytes = ngram.getBytes(StandardCharsets.UTF_8);
+            if (MurmurHash.hash64(bytes, bytes.length, 7) != MurmurHash.hash64(ngram, 7))
+                throw new AssertionError("the String and byte[] hashes differ for " + ngram);
+        }
+
+        measure("byte[] (getBytes)", ngrams.length, () -> {
+            long h = 0;
+            for (String ngram : ngrams) {
+                byte[] bytes = ngram.getBytes(StandardCharsets.UTF_8);
+                h += MurmurHash.hash64(bytes, bytes.length, 7);
+            }
+            return h;
+        });
+        measure("CharSequence", ngrams.length, () -> {
+            long h = 0;
+            for (String ngram : ngrams)
+                h += MurmurHash.hash64(ngram, 7);
+            return h;
+        });
+        measure("char[] slice", ngrams.length, () -> {
+            long h = 0;
+            for (int i = 0; i < ngrams.length; i++)
+                h += MurmurHash.hash64(buffer, offsets[i], offsets[i + 1] - offsets[i], 7);
+            return h;
+        });
+    }
+
+    /**
+     * Updates and point queries of a 2-class count-min sketch of 10 x 2^20 cells: the flat CountMinSketch against
+     * the jagged int[class][row][bucket] layout that NaiveBayesCountMinSketch used before, against its 16 and
+     * 8 bit (Morris) counters, and against its conservative update.
+     */
+    private static void countMinSketch() {
+        int nbOfHashes = 10;
+        int logNbOfBuckets = 20;
+        System.out.println("cms: " + nbOfHashes + " x 2^" + logNbOfBuckets + " count-min sketch with 2 classes, 100000 n-grams");
+        Random random = new Random(42);
+        long[] ngrams = new long[100000];
+        int[] labels = new int[ngrams.length];
+        for (int i = 0; i < ngrams.length; i++) {
+            ngrams[i] = random.nextLong();
+            labels[i] = random.nextInt(2);
+        }
+
+        SketchHashing hashing = new SketchHashing(nbOfHashes, logNbOfBuckets, 0);
+        int[] rowIndices = new int[nbOfHashes];
+        int[][][] jagged = new int[2][nbOfHashes][1 << logNbOfBuckets];
+        CountMinSketch flat = new CountMinSketch(nbOfHashes, logNbOfBuckets, 2, 0, 1);
+        int[] min = new int[2];
+
+        measure("update, jagged", ngrams.length, () -> {
+            for (int i = 0; i < ngrams.length; i++) {
+                hashing.rowIndices(ngrams[i], rowIndices);
+                for (int h = 0; h < nbOfHashes; h++)
+                    jagged[labels[i]][h][rowIndices[h]]++;
+            }
+            return jagged[0][0][0];
+        });
+        measure("update, CountMinSketch", ngrams.length, () -> {
+            for (int i = 0; i < ngrams.length; i++)
+                flat.add(ngrams[i], labels[i]);
+            return flat.getCount(0, 0, 0);
+        });
+        measure("query both classes, jagged", ngrams.length, () -> {
+            long sum = 0;
+            for (long ngram : ngrams) {
+                hashing.rowIndices(ngram, rowIndices);
+                int min0 = Integer.MAX_VALUE;
+                int min1 = Integer.MAX_VALUE;
+                for (int h = 0; h < nbOfHashes; h++) {
+                    min0 = Math.min(min0, jagged[0][h][rowIndices[h]]);
+                    min1 = Math.min(min1, jagged[1][h][rowIndices[h]]);
+                }
+                sum += min0 + min1;
+            }
+            return sum;
+        });
+        measure("query both classes, CountMinSketch", ngrams.length, () -> {
+            long sum = 0;
+            for (long ngram : ngrams) {
+                flat.minCounts(ngram, min);
+                sum += min[0] + min[1];
+            }
+            return sum;
+        });
+        CountMinSketch conservative = new CountMinSketch(nbOfHashes, logNbOfBuckets, 2, 0, 1, false, false,
+                CountMinSketch.INT_COUNTERS, true);
+        measure("update, conservative", ngrams.length, () -> {
+            for (int i = 0; i < ngrams.length; i++)
+                conservative.add(ngrams[i], labels[i]);
+            return conservative.getCount(0, 0, 0);
+        });
+        for (int counterBits : new int[]{CountMinSketch.SHORT_COUNTERS, CountMinSketch.MORRIS_COUNTERS}) {
+            CountMinSketch packed = new CountMinSketch(nbOfHashes, logNbOfBuckets, 2, 0, 1, false, false, counterBits);
+            measure("update, " + counterBits + " bit counters", ngrams.length, () -> {
+                for (int i = 0; i < ngrams.length; i++)
+                    packed.add(ngrams[i], labels[i]);
+                return packed.getCount(0, 0, 0);
+            });
+            measure("query both classes, " + counterBits + " bit counters", ngrams.length, () -> {
+                long sum = 0;
+                for (long ngram : ngrams) {
+                    packed.minCounts(ngram, min);
+                    sum += min[0] + min[1];
+                }
+                return sum;
+            });
+        }
+    }
+
+    /**
+     * Updates of the naive Bayes classifiers in concurrent mode by 1 to N threads, against the plain mode with one
+     * thread. The time per operation is the time per mail of the whole batch, so it goes down as the threads scale.
+     */
+    private static void concurrentUpdates() {
+        int nbOfProcessors = Runtime.getRuntime().availableProcessors();
+        System.out.println("nbupdate: naive Bayes updates with 2000 mails of 200 n-grams, " + nbOfProcessors + " processors");
+        List<LabeledText> mails = randomMails(2000, 200);
+
+        int maxThreads = Math.max(4, nbOfProcessors);
+        ExecutorService pool = Executors.newFixedThreadPool(maxThreads, MailStream.daemonThreads("Benchmarks"));
+        OnlineTextClassifier plainFH = new NaiveBayesFeatureHashing(20, 0.5);
+        measure("NBFH, plain, 1 thread", mails.size(), () -> update(plainFH, mails, pool, 1));
+        for (int nbOfThreads = 1; nbOfThreads <= maxThreads; nbOfThreads *= 2) {
+            int threads = nbOfThreads;
+            OnlineTextClassifier nb = new NaiveBayesFeatureHashing(20, 0.5, true);
+            measure("NBFH, concurrent, " + threads + " threads", mails.size(), () -> update(nb, mails, pool, threads));
+        }
+        OnlineTextClassifier plainCMS = new NaiveBayesCountMinSketch(10, 20, 0.5);
+        measure("NBCMS, plain, 1 thread", mails.size(), () -> update(plainCMS, mails, pool, 1));
+        for (int nbOfThreads = 1; nbOfThreads <= maxThreads; nbOfThreads *= 2) {
+            int threads = nbOfThreads;
+            OnlineTextClassifier nb = new NaiveBayesCountMinSketch(10, 20, 0.5, true);
+            measure("NBCMS, concurrent, " + threads + " threads", mails.size(), () -> update(nb, mails, pool, threads));
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * Loading and mapping a snapshot of a naive Bayes classifier with a 10 x 2^20 count-min sketch, and its predictions
+     * on the heap against its predictions from the mapped file.
+     */
+    private static void snapshots() {
+        System.out.println("snapshot: naive Bayes with a 10 x 2^20 count-min sketch, predictions of 1000 mails of 200 n-grams");
+        List<LabeledText> mails = randomMails(1000, 200);
+        OnlineTextClassifier nb = new NaiveBayesCountMinSketch(10, 20, 0.5);
+        for (LabeledText mail : mails)
+            nb.update(mail);
+
+        try {
+            File file = File.createTempFile("Benchmarks", ".model");
+            file.deleteOnExit();
+            nb.save(file.getPath());
+            long start = System.nanoTime();
+            OnlineTextClassifier loaded = OnlineTextClassifier.load(file.getPath());
+            long loadTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            OnlineTextClassifier mapped = OnlineTextClassifier.map(file.getPath());
+            long mapTime = System.nanoTime() - start;
+            System.out.println(String.format("  %-36s %10.1f ms", "load " + file.length() / (1 << 20) + " MB", loadTime / 1e6));
+            System.out.println(String.format("  %-36s %10.1f ms", "map " + file.length() / (1 << 20) + " MB", mapTime / 1e6));
+
+            measure("predict, loaded", mails.size(), () -> predict(loaded, mails));
+            measure("predict, mapped", mails.size(), () -> predict(mapped, mails));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Predictions of the naive Bayes classifiers with the logs of the counts from Math.log() against LogTable: with
+     * feature hashing, and with a count-min sketch of 1, 5 and 10 x 2^20 cells. The classifiers are trained on 2000
+     * mails and then score 1000 other mails, so most counts are small.
+     */
+    private static void logTable() {
+        System.out.println("logtable: naive Bayes predictions of 1000 mails of 200 n-grams, with Math.log() and LogTable");
+        List<LabeledText> mails = randomMails(3000, 200);
+        List<LabeledText> training = mails.subList(0, 2000);
+        List<LabeledText> test = mails.subList(2000, 3000);
+
+        NaiveBayesFeatureHashing fh = new NaiveBayesFeatureHashing(20, 0.5);
+        for (LabeledText mail : training)
+            fh.update(mail);
+        fh.setLogTable(false);
+        measure("NBFH, Math.log", test.size(), () -> predict(fh, test));
+        fh.setLogTable(true);
+        measure("NBFH, LogTable", test.size(), () -> predict(fh, test));
+
+        for (int nbOfHashes : new int[]{1, 5, 10}) {
+            NaiveBayesCountMinSketch cms = new NaiveBayesCountMinSketch(nbOfHashes, 20, 0.5);
+            for (LabeledText mail : training)
+                cms.update(mail);
+            cms.setLogTable(false);
+            measure("NBCMS " + nbOfHashes + " hashes, Math.log", test.size(), () -> predict(cms, test));
+            cms.setLogTable(true);
+            measure("NBCMS " + nbOfHashes + " hashes, LogTable", test.size(), () -> predict(cms, test));
+        }
+    }
+
+    /**
+     * Writing 10000 predictions to a file: with a PrintWriter that is flushed after every prediction, as
+     * makeLearningCurve() did, and with an OutputSink, as text and in binary.
+     */
+    private static void predictionWriters() {
+        System.out.println("sink: writing 10000 predictions to a file");
+        Random random = new Random(42);
+        int[] labels = new int[10000];
+        double[] predictions = new double[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = random.nextInt(2);
+            predictions[i] = random.nextDouble();
+        }
+
+        try {
+            File file = File.createTempFile("Benchmarks", ".pred");
+            file.deleteOnExit();
+            measure("PrintWriter, flush per prediction", labels.length, () -> {
+                try (PrintWriter writer = new PrintWriter(file)) {
+                    for (int i = 0; i < labels.length; i++) {
+                        writer.println(labels[i] + "\t" + (predictions[i] > 0.5 ? 1 : 0) + "\t" + predictions[i]);
+                        writer.flush();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return file.length();
+            });
+            for (boolean binary : new boolean[]{false, true}) {
+                measure("OutputSink, " + (binary ? "binary" : "text"), labels.length, () -> {
+                    try (OutputSink sink = OutputSink.predictions(file.getPath(), binary)) {
+                        for (int i = 0; i < labels.length; i++)
+                            sink.writePrediction(labels[i], predictions[i] > 0.5 ? 1 : 0, predictions[i]);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return file.length();
+                });
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Monitoring 100000 predictions over a window of 1000 predictions and with a half-life of 1000 predictions,
+     * reported every 1000 predictions, which is the overhead of -window per mail in makeLearningCurve().
+     */
+    private static void monitor() {
+        System.out.println("monitor: windowed and decayed metrics of 100000 predictions");
+        Random random = new Random(42);
+        int[] labels = new int[100000];
+        int[] predictedClasses = new int[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = random.nextInt(2);
+            predictedClasses[i] = random.nextInt(10) == 0 ? 1 - labels[i] : labels[i];
+        }
+        EvaluationMetric[] evals = {new Accuracy(), new Recall(), new Precision(), new F1Score(), new BalancedAccuracy()};
+
+        try {
+            File stem = File.createTempFile("Benchmarks", "");
+            stem.deleteOnExit();
+            try (WindowedEvaluation monitor = new WindowedEvaluation(evals, 1000, 1000, 1000, stem.getPath())) {
+                measure("WindowedEvaluation.add", labels.length, () -> {
+                    for (int i = 0; i < labels.length; i++)
+                        monitor.add(labels[i], predictedClasses[i]);
+                    return Double.doubleToLongBits(monitor.evaluateDecayed(evals[0]));
+                });
+            }
+            for (EvaluationMetric metric : evals) {
+                new File(stem.getPath() + ".window." + metric.name()).delete();
+                new File(stem.getPath() + ".decayed." + metric.name()).delete();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Updates of the adjusted perceptron with 2^20 buckets on 1000 mails of 200 n-grams, with the sigmoid
+     * (threshold 0.5) and without it (threshold 0).
+     */
+    private static void adjustedPerceptronUpdates() {
+        System.out.println("adpfh: adjusted perceptron updates of 1000 mails of 200 n-grams");
+        List<LabeledText> mails = randomMails(1000, 200);
+        for (double threshold : new double[]{0.5, 0}) {
+            AdjustedPerceptronFeatureHashing perceptron = new AdjustedPerceptronFeatureHashing(20, 0.01, threshold);
+            measure("ADPFH, threshold " + threshold, mails.size(), () -> {
+                for (LabeledText mail : mails)
+                    perceptron.update(mail);
+                return Double.doubleToLongBits(perceptron.makePrediction(mails.get(0).text));
+            });
+        }
+    }
+
+    /**
+     * @return Mails of random n-grams, with random labels
+     */
+    private static List<LabeledText> randomMails(int nbOfMails, int nbOfNgrams) {
+        Random random = new Random(42);
+        List<LabeledText> mails = new ArrayList<>();
+        for (int i = 0; i < nbOfMails; i++) {
+            long[] fingerprints = new long[nbOfNgrams];
+            for (int f = 0; f < fingerprints.length; f++)
+                fingerprints[f] = random.nextLong();
+            mails.add(new LabeledText(new ParsedText(NgramHash.sortDistinct(fingerprints, fingerprints.length)), random.nextInt(2)));
+        }
+        return mails;
+    }
+
+    private static long predict(OnlineTextClassifier classifier, List<LabeledText> mails) {
+        long sum = 0;
+        for (LabeledText mail : mails)
+            sum += classifier.classify(classifier.makePrediction(mail.text));
+        return sum;
+    }
+
+    /**
+     * Updates a classifier with all the mails, split over a number of threads of the pool
+     *
+     * @return The number of examples that the classifier processed so far
+     */
+    private static long update(OnlineTextClassifier classifier, List<LabeledText> mails, ExecutorService pool, int nbOfThreads) {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < nbOfThreads; t++) {
+            int first = t;
+            tasks.add(() -> {
+                for (int i = first; i < mails.size(); i += nbOfThreads)
+                    classifier.update(mails.get(i));
+                return null;
+            });
+        }
+        try {
+            if (nbOfThreads == 1)
+                tasks.get(0).call();
+            else
+                for (Future<Void> result : pool.invokeAll(tasks))
+                    result.get();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return classifier.nbExamplesProcessed;
+    }
+
+    /**
+     * Runs a benchmark and prints its median time and its allocated bytes per operation
+     *
+     * @param name The name of the benchmark
+     * @param nbOfOperations The number of operations in one round
+     * @param round Runs one round and returns a value that depends on all its operations
+     */
+    static void measure(String name, int nbOfOperations, LongSupplier round) {
+        for (int r = 0; r < WARMUP_ROUNDS; r++)
+            sink += round.getAsLong();
+
+        long[] times = new long[MEASURED_ROUNDS];
+        long allocated = allocatedBytes();
+        for (int r = 0; r < MEASURED_ROUNDS; r++) {
+            long start = System.nanoTime();
+            sink += round.getAsLong();
+            times[r] = System.nanoTime() - start;
+        }
+        allocated = allocatedBytes() - allocated;
+        Arrays.sort(times);
+        System.out.println(String.format("  %-36s %10.1f ns/op %10.1f B/op", name,
+                times[MEASURED_ROUNDS / 2] / (double) nbOfOperations,
+                allocated / (double) MEASURED_ROUNDS / nbOfOperations));
+    }
+
+    /**
+     * @return The number of bytes allocated by the current thread so far, or 0 if the JVM does not count them
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+}
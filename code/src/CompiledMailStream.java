@@ -0,0 +1,356 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+
+/**
+ * This class is a mail stream over a compiled corpus: a binary file with the parsed e-mails of a mail stream.
+ *
+ * Compiling the corpus parses every e-mail once. Streaming the compiled file afterwards only costs sequential
+ * (memory-mapped) I/O, so repeated experiments on the same corpus skip the MIME parsing and n-gram extraction.
+ *
+ * File format (little endian):
+ *   header: magic (int), version (int), maxN (int)
+ *   records: length (int, bytes after this field), label (byte), number of n-grams (varint), followed by
+ *     version 1: per n-gram its id (varint). The first occurrence of an id is the next free id and is directly
+ *                followed by the n-gram itself: its UTF-8 length (varint) and bytes.
+ *     version 2: the sorted fingerprints of the n-grams (long), see NgramHash. The e-mails are then streamed
+ *                as fingerprints only.
+ */
+public class CompiledMailStream extends MailStream {
+
+    static final int MAGIC = 0x43414442; // "BDAC"
+    static final int NGRAM_VERSION = 1;
+    static final int FINGERPRINT_VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+    private static final long WINDOW_SIZE = 1L << 28; // bytes mapped at a time
+
+    private final String corpusPath;
+    private final boolean fingerprints;
+    private final int maxN;
+
+    /**
+     * Initialize the mail stream with the path to a compiled corpus
+     *
+     * @param corpusPath Path to a file written by compile()
+     * @throws IOException if the file can not be read or is not a compiled corpus
+     */
+    public CompiledMailStream(String corpusPath) throws IOException {
+        super(corpusPath, null);
+        this.corpusPath = corpusPath;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(corpusPath))) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            in.readFully(header.array());
+            int magic = header.getInt();
+            int version = header.getInt();
+            if (magic != MAGIC || (version != NGRAM_VERSION && version != FINGERPRINT_VERSION))
+                throw new IOException(corpusPath + " is not a compiled corpus (version " + NGRAM_VERSION
+                        + " or " + FINGERPRINT_VERSION + ")");
+            this.fingerprints = version == FINGERPRINT_VERSION;
+            this.maxN = header.getInt();
+        }
+    }
+
+    /**
+     * @return The maximum n of the n-grams in the compiled corpus
+     */
+    public int getMaxN() {
+        return maxN;
+    }
+
+    /**
+     * Checks whether the file at the given path is a compiled corpus
+     *
+     * @param path Path to an index or a compiled corpus
+     * @return true if the file starts with the compiled corpus header
+     */
+    public static boolean isCompiled(String path) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            return Integer.reverseBytes(in.readInt()) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public MailStream shard(int shard, int nbOfShards) throws IOException {
+        CompiledMailStream stream = new CompiledMailStream(corpusPath);
+        stream.setShard(shard, nbOfShards);
+        return stream;
+    }
+
+    /**
+     * The stream over the compiled e-mails, in the order in which they were compiled.
+     *
+     * @return The e-mail stream iterator.
+     */
+    @Override
+    public Iterator<LabeledText> iterator() {
+        return new CompiledIterator();
+    }
+
+    /**
+     * The iterator over the records of the corpus. The file is open from the first hasNext() until the end of the
+     * stream, a read error or close(), see MailStream.close().
+     */
+    private class CompiledIterator implements Iterator<LabeledText>, AutoCloseable {
+
+        private boolean done = false;
+        private FileChannel channel = null;
+        private long size;
+        private long position = HEADER_SIZE;
+        private MappedByteBuffer window = null;
+        private long windowStart;
+        private List<String> dictionary = new ArrayList<>();
+        private byte[] bytes = new byte[64];
+        private LabeledText nextExample = null;
+        private long nbOfRecords = 0; // the number of records read so far, in all shards
+
+        @Override
+        public boolean hasNext() {
+            if (done)
+                return false;
+            try {
+                if (channel == null) {
+                    channel = FileChannel.open(Paths.get(corpusPath), StandardOpenOption.READ);
+                    size = channel.size();
+                }
+                while (position + 4 <= size) {
+                    // map the window that holds the whole record
+                    map(position, 4);
+                    int length = window.getInt((int) (position - windowStart));
+                    map(position, 4 + length);
+                    window.position((int) (position - windowStart) + 4);
+                    position += 4 + length;
+
+                    // the records of the other shards are skipped, except the new n-grams of the dictionary
+                    boolean skip = !inShard(nbOfRecords++);
+                    LabeledText example = readRecord(skip);
+                    if (!skip) {
+                        nextExample = example;
+                        return true;
+                    }
+                }
+                close();
+                return false;
+            } catch (IOException e) {
+                System.err.println("couldn't read " + corpusPath + ": " + e.getMessage());
+                close();
+                return false;
+            }
+        }
+
+        private void map(long from, int length) throws IOException {
+            if (window != null && from >= windowStart && from + length <= windowStart + window.limit())
+                return;
+            if (from + length > size)
+                throw new IOException("truncated record at offset " + from);
+            windowStart = from;
+            long windowSize = Math.min(Math.max(WINDOW_SIZE, length), size - from);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, from, windowSize);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private LabeledText readRecord(boolean skip) {
+            int label = window.get();
+            int nbOfNgrams = readVarInt(window);
+            if (fingerprints) {
+                if (skip)
+                    return null;
+                long[] text = new long[nbOfNgrams];
+                for (int i = 0; i < nbOfNgrams; i++)
+                    text[i] = window.getLong();
+                return new LabeledText(new ParsedText(text), label);
+            }
+
+            Set<String> ngrams = new HashSet<>();
+            for (int i = 0; i < nbOfNgrams; i++) {
+                int id = readVarInt(window);
+                if (id == dictionary.size()) {
+                    int length = readVarInt(window);
+                    if (bytes.length < length)
+                        bytes = new byte[Math.max(length, 2 * bytes.length)];
+                    window.get(bytes, 0, length);
+                    dictionary.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+                }
+                if (!skip)
+                    ngrams.add(dictionary.get(id));
+            }
+            return skip ? null : new LabeledText(new ParsedText(ngrams), label);
+        }
+
+        @Override
+        public LabeledText next() {
+            return nextExample;
+        }
+
+        @Override
+        public void remove() {
+            //do nothing
+        }
+
+        /**
+         * Closes the file, the stream ends here
+         */
+        @Override
+        public void close() {
+            done = true;
+            window = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("couldn't close " + corpusPath + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses all the e-mails of a mail stream and writes them to a compiled corpus.
+     *
+     * @param stream The mail stream to compile
+     * @param maxN The maximum n of the n-grams that the parser of the stream extracts
+     * @param corpusPath The path of the compiled corpus
+     * @param fingerprints If true, the fingerprints of the n-grams are written instead of the n-grams
+     * @return The number of compiled e-mails
+     * @throws IOException
+     */
+    public static int compile(MailStream stream, int maxN, String corpusPath, boolean fingerprints) throws IOException {
+        Map<String, Integer> dictionary = new HashMap<>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer record = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        int nbOfMails = 0;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(corpusPath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.putInt(MAGIC).putInt(fingerprints ? FINGERPRINT_VERSION : NGRAM_VERSION).putInt(maxN);
+
+            for (LabeledText example : stream) {
+                record.clear();
+                record.put((byte) example.label);
+                if (fingerprints) {
+                    long[] text = example.text.getFingerprints();
+                    record = putVarInt(record, text.length);
+                    record = ensureCapacity(record, 8 * text.length);
+                    for (long fingerprint : text)
+                        record.putLong(fingerprint);
+                } else {
+                    record = putVarInt(record, example.text.ngrams.size());
+                    for (String ngram : example.text.ngrams) {
+                        Integer id = dictionary.get(ngram);
+                        if (id != null) {
+                            record = putVarInt(record, id);
+                        } else {
+                            byte[] utf8 = ngram.getBytes(StandardCharsets.UTF_8);
+                            record = putVarInt(record, dictionary.size());
+                            record = putVarInt(record, utf8.length);
+                            record = ensureCapacity(record, utf8.length);
+                            record.put(utf8);
+                            dictionary.put(ngram, dictionary.size());
+                        }
+                    }
+                }
+                record.flip();
+
+                if (buffer.remaining() < 4 + record.remaining()) {
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        channel.write(buffer);
+                    buffer.clear();
+                }
+                if (buffer.remaining() < 4 + record.remaining()) {
+                    // a record larger than the write buffer is written directly
+                    ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(record.remaining());
+                    length.flip();
+                    while (length.hasRemaining())
+                        channel.write(length);
+                    while (record.hasRemaining())
+                        channel.write(record);
+                } else {
+                    buffer.putInt(record.remaining());
+                    buffer.put(record);
+                }
+                nbOfMails++;
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        return nbOfMails;
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint, growing the buffer if needed.
+     */
+    private static ByteBuffer putVarInt(ByteBuffer buffer, int value) {
+        buffer = ensureCapacity(buffer, 5);
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+        return buffer;
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int extra) {
+        if (buffer.remaining() >= extra)
+            return buffer;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + extra))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    /**
+     * Compiles the e-mails of an index into a corpus file.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: java CompiledMailStream <indexPath> <stopWordsPath> <maxN> <corpusPath> [-parseThreads=<n>] [-stemCacheSize=<n>] [-hashNgrams]");
+            throw new Error("Expected at least 4 arguments, got " + args.length + ".");
+        }
+        String indexPath = args[0];
+        String stopWordsPath = args[1];
+        int n = Integer.parseInt(args[2]);
+        String corpusPath = args[3];
+        int nbOfParseThreads = HelperFunctions.getIntOption(args, 4, "-parseThreads", 1);
+        int stemCacheSize = HelperFunctions.getIntOption(args, 4, "-stemCacheSize", EmlParser.DEFAULT_STEM_CACHE_SIZE);
+        boolean hashNgrams = HelperFunctions.hasFlag(args, 4, "-hashNgrams");
+
+        EmlParser parser = new EmlParser(stopWordsPath, n, stemCacheSize, hashNgrams);
+        MailStream stream = new MailStream(indexPath, parser, nbOfParseThreads);
+        int nbOfMails = compile(stream, n, corpusPath, hashNgrams);
+        System.out.println("Compiled " + nbOfMails + " e-mails into " + corpusPath);
+
+        long hits = parser.getStemCacheHits();
+        long misses = parser.getStemCacheMisses();
+        System.out.println("Stem cache: " + hits + " hits, " + misses + " misses (hit rate "
+                + String.format("%.3f", hits / (double) Math.max(hits + misses, 1)) + ")");
+    }
+}
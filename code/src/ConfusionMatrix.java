@@ -0,0 +1,67 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+
+
+/**
+ * This class counts the true and false positives and negatives of the predictions of a classifier on a batch, the
+ * contingency table that the evaluation metrics take.
+ *
+ * It is the one place where a prediction is sorted into the table for makeLearningCurve(), MultiModelEvaluation,
+ * HyperParameterSweep and ShardedTraining, so that they score the batches the same way.
+ */
+public class ConfusionMatrix {
+
+    int TP;
+    int FP;
+    int TN;
+    int FN;
+
+    /**
+     * Counts a prediction
+     *
+     * @param label The true class, 0 or 1
+     * @param predictedClass The class predicted by the classifier, 0 or 1
+     */
+    public void add(int label, int predictedClass) {
+        if (predictedClass == 1) {
+            if (label == 1)
+                TP++;
+            else
+                FP++;
+        } else {
+            if (label == 0)
+                TN++;
+            else
+                FN++;
+        }
+    }
+
+    /**
+     * Counts the predictions of a model on a batch, without training it
+     *
+     * @param model The classifier
+     * @param batch The e-mails
+     * @return The contingency table of the batch
+     */
+    public static ConfusionMatrix of(OnlineTextClassifier model, Iterable<LabeledText> batch) {
+        ConfusionMatrix matrix = new ConfusionMatrix();
+        for (LabeledText example : batch)
+            matrix.add(example.label, model.classify(model.makePrediction(example.text)));
+        return matrix;
+    }
+
+    /**
+     * @return The score of the metric on the predictions counted so far
+     */
+    public double evaluate(EvaluationMetric metric) {
+        return metric.evaluate(TP, FP, TN, FN);
+    }
+
+    /**
+     * @return The number of predictions counted so far
+     */
+    public int size() {
+        return TP + FP + TN + FN;
+    }
+}
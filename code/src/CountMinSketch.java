@@ -0,0 +1,528 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+ * This class is a count-min sketch that counts n-grams for a fixed number of classes at once.
+ *
+ * The sketch has nbOfHashes rows of nbOfBuckets cells, and every cell holds one counter per class. All the counters
+ * live in one flat array, with the counters of the classes of a cell next to each other: the counter of class c in
+ * bucket i of row h is counts[(h * nbOfBuckets + i) * nbOfClasses + c]. A lookup of an n-gram therefore reads one
+ * cache line per row for all the classes, without following pointers to sub-arrays. The array is an IntStorage, so
+ * it can also be a region of a mapped model snapshot.
+ *
+ * The buckets of an n-gram are given by SketchHashing.
+ *
+ * A sketch is not thread-safe, unless it is created in concurrent mode: then add() increments the counters with
+ * atomic read-modify-write operations, so several threads can add n-grams at the same time without losing counts.
+ * Queries read the counters without synchronization; a query that runs during an add() may see some of its rows
+ * incremented and others not, which only matters as much as one n-gram more or less.
+ *
+ * Two sketches with the same dimensions and hash functions can be merged: a counter of the merged sketch is the sum
+ * of the counters of both, so a sketch built from shards of a stream equals the sketch built from the whole stream.
+ *
+ * The counters are 32 bits wide by default. Most of them stay small, so narrower counters hold a wider sketch in the
+ * same memory; they are packed 2 or 4 to an int of the storage, with the counters of the classes of a cell still
+ * next to each other:
+ *   SHORT_COUNTERS: 16 bits, that stop counting (saturate) at 65535.
+ *   MORRIS_COUNTERS: 8 bits, that count approximately (Morris counters). A counter holds an exponent r that stands
+ *     for the count ((1 + MORRIS_RATE)^r - 1) / MORRIS_RATE, and an add() increments it with probability
+ *     (1 + MORRIS_RATE)^-r, so the estimate of the count is unbiased. The estimate of a count n has a variance of
+ *     MORRIS_RATE * n * (n - 1) / 2: a count of 1 is exact, large counts have a relative standard deviation of
+ *     about 0.18, and the largest count is about 80 million. In concurrent mode, the random numbers are those of ThreadLocalRandom,
+ *     otherwise they come from the seed, so the counts are reproducible. Merging Morris counters rounds the sum of
+ *     the counts to the nearest exponent, so a merged sketch is close to, but not the same as, a sketch built from
+ *     the whole stream.
+ *
+ * In conservative mode, add() only increments the counters of an n-gram that hold its current estimate, the minimum
+ * over the rows; the others already count more than enough for it. The estimates are still upper bounds of the true
+ * counts, but a rare n-gram that shares a counter with a frequent one inflates it less, so a sketch of the same
+ * size estimates better. The minimum is found in the same pass over the rows that computes the buckets. In
+ * concurrent mode, a counter that another thread changes meanwhile is left as it is. Merging conservative sketches
+ * adds their counters, which keeps upper bounds, but is not the same as a sketch built from the whole stream.
+ */
+public class CountMinSketch {
+
+    public static final int INT_COUNTERS = 32;
+    public static final int SHORT_COUNTERS = 16;
+    public static final int MORRIS_COUNTERS = 8;
+
+    static final double MORRIS_RATE = 1.0 / 16;
+    private static final int[] MORRIS_VALUES = new int[256]; // the count that an exponent stands for
+    private static final double[] MORRIS_PROBABILITIES = new double[256]; // the probability to increment an exponent
+
+    static {
+        for (int r = 0; r < 256; r++) {
+            MORRIS_VALUES[r] = (int) Math.round((Math.pow(1 + MORRIS_RATE, r) - 1) / MORRIS_RATE);
+            MORRIS_PROBABILITIES[r] = Math.pow(1 + MORRIS_RATE, -r);
+        }
+    }
+
+    private final int nbOfHashes;
+    private final int nbOfBuckets;
+    private final int nbOfClasses;
+    private final SketchHashing hashing;
+    private final IntStorage counts;
+    private final int initialCount;
+    private final boolean concurrent;
+    private final int counterBits;
+    private final int packShift; // log2 of the number of counters per int
+    private final int counterMask; // the largest value of a packed counter
+    private final SplittableRandom random; // for the Morris counters, when not concurrent
+    private final boolean conservative;
+
+    /**
+     * Initialize the sketch
+     *
+     * @param nbOfHashes The number of hash functions (rows)
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^logNbOfBuckets-1]
+     * @param nbOfClasses The number of counters per cell
+     * @param seed The seed of the hash functions
+     * @param initialCount The initial value of every counter, e.g. 1 for Laplace smoothing
+     */
+    public CountMinSketch(int nbOfHashes, int logNbOfBuckets, int nbOfClasses, int seed, int initialCount) {
+        this(nbOfHashes, logNbOfBuckets, nbOfClasses, seed, initialCount, false);
+    }
+
+    /**
+     * Initialize the sketch
+     *
+     * @param nbOfHashes The number of hash functions (rows)
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^logNbOfBuckets-1]
+     * @param nbOfClasses The number of counters per cell
+     * @param seed The seed of the hash functions
+     * @param initialCount The initial value of every counter, e.g. 1 for Laplace smoothing
+     * @param concurrent If true, several threads can add n-grams at the same time
+     */
+    public CountMinSketch(int nbOfHashes, int logNbOfBuckets, int nbOfClasses, int seed, int initialCount,
+                          boolean concurrent) {
+        this(nbOfHashes, logNbOfBuckets, nbOfClasses, seed, initialCount, concurrent, false);
+    }
+
+    /**
+     * Initialize the sketch
+     *
+     * @param nbOfHashes The number of hash functions (rows)
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^logNbOfBuckets-1]
+     * @param nbOfClasses The number of counters per cell
+     * @param seed The seed of the hash functions
+     * @param initialCount The initial value of every counter, e.g. 1 for Laplace smoothing
+     * @param concurrent If true, several threads can add n-grams at the same time
+     * @param offHeap If true, the counters are stored outside the Java heap, see IntStorage.offHeap()
+     */
+    public CountMinSketch(int nbOfHashes, int logNbOfBuckets, int nbOfClasses, int seed, int initialCount,
+                          boolean concurrent, boolean offHeap) {
+        this(nbOfHashes, logNbOfBuckets, nbOfClasses, seed, initialCount, concurrent, offHeap, INT_COUNTERS);
+    }
+
+    /**
+     * Initialize the sketch
+     *
+     * @param nbOfHashes The number of hash functions (rows)
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^logNbOfBuckets-1]
+     * @param nbOfClasses The number of counters per cell
+     * @param seed The seed of the hash functions
+     * @param initialCount The initial value of every counter, e.g. 1 for Laplace smoothing
+     * @param concurrent If true, several threads can add n-grams at the same time
+     * @param offHeap If true, the counters are stored outside the Java heap, see IntStorage.offHeap()
+     * @param counterBits The width of the counters: INT_COUNTERS, SHORT_COUNTERS or MORRIS_COUNTERS
+     */
+    public CountMinSketch(int nbOfHashes, int logNbOfBuckets, int nbOfClasses, int seed, int initialCount,
+                          boolean concurrent, boolean offHeap, int counterBits) {
+        this(nbOfHashes, logNbOfBuckets, nbOfClasses, seed, initialCount, concurrent, offHeap, counterBits, false);
+    }
+
+    /**
+     * Initialize the sketch
+     *
+     * @param nbOfHashes The number of hash functions (rows)
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^logNbOfBuckets-1]
+     * @param nbOfClasses The number of counters per cell
+     * @param seed The seed of the hash functions
+     * @param initialCount The initial value of every counter, e.g. 1 for Laplace smoothing
+     * @param concurrent If true, several threads can add n-grams at the same time
+     * @param offHeap If true, the counters are stored outside the Java heap, see IntStorage.offHeap()
+     * @param counterBits The width of the counters: INT_COUNTERS, SHORT_COUNTERS or MORRIS_COUNTERS
+     * @param conservative If true, add() only increments the counters at the minimum (conservative update)
+     */
+    public CountMinSketch(int nbOfHashes, int logNbOfBuckets, int nbOfClasses, int seed, int initialCount,
+                          boolean concurrent, boolean offHeap, int counterBits, boolean conservative) {
+        this(nbOfHashes, logNbOfBuckets, nbOfClasses, seed, initialCount, concurrent, counterBits, conservative,
+                IntStorage.allocate(storageLength(nbOfHashes, logNbOfBuckets, nbOfClasses, counterBits), offHeap));
+        if (initialCount != 0) {
+            int raw = encode(initialCount);
+            int word = raw;
+            for (int k = 1; k < 1 << packShift; k++)
+                word |= raw << (k * counterBits);
+            counts.fill(word);
+        }
+    }
+
+    /**
+     * Initialize the sketch with the given counters, e.g. from a model snapshot
+     *
+     * @param counts The counters, see storageLength()
+     */
+    CountMinSketch(int nbOfHashes, int logNbOfBuckets, int nbOfClasses, int seed, int initialCount,
+                   boolean concurrent, int counterBits, boolean conservative, IntStorage counts) {
+        if (counts.length() != storageLength(nbOfHashes, logNbOfBuckets, nbOfClasses, counterBits))
+            throw new IllegalArgumentException("A sketch of " + nbOfHashes + " x 2^" + logNbOfBuckets + " x "
+                    + nbOfClasses + " counters of " + counterBits + " bits does not fit in " + counts.length() + " ints");
+        this.nbOfHashes = nbOfHashes;
+        this.nbOfBuckets = 1 << logNbOfBuckets;
+        this.nbOfClasses = nbOfClasses;
+        this.hashing = new SketchHashing(nbOfHashes, logNbOfBuckets, seed);
+        this.counts = counts;
+        this.initialCount = initialCount;
+        this.concurrent = concurrent;
+        this.counterBits = counterBits;
+        this.packShift = Integer.numberOfTrailingZeros(32 / counterBits);
+        this.counterMask = counterBits == INT_COUNTERS ? -1 : (1 << counterBits) - 1;
+        this.random = counterBits == MORRIS_COUNTERS && !concurrent ? new SplittableRandom(seed) : null;
+        this.conservative = conservative;
+        if (initialCount < 0 || (counterBits != INT_COUNTERS && encode(initialCount) >= counterMask))
+            throw new IllegalArgumentException("An initial count of " + initialCount + " does not fit in "
+                    + counterBits + " bits");
+    }
+
+    /**
+     * @return The number of counters of a sketch
+     * @throws IllegalArgumentException if they do not fit in an array
+     */
+    static int size(int nbOfHashes, int logNbOfBuckets, int nbOfClasses) {
+        long size = (long) nbOfHashes * nbOfClasses << logNbOfBuckets;
+        if (logNbOfBuckets < 0 || logNbOfBuckets > 30 || size > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("A sketch of " + nbOfHashes + " x 2^" + logNbOfBuckets + " x "
+                    + nbOfClasses + " counters does not fit in an array");
+        return (int) size;
+    }
+
+    /**
+     * @return The number of ints that hold the counters of a sketch
+     * @throws IllegalArgumentException if the width of the counters is not supported
+     */
+    static int storageLength(int nbOfHashes, int logNbOfBuckets, int nbOfClasses, int counterBits) {
+        if (counterBits != INT_COUNTERS && counterBits != SHORT_COUNTERS && counterBits != MORRIS_COUNTERS)
+            throw new IllegalArgumentException("Counters of " + counterBits + " bits are not supported, only "
+                    + INT_COUNTERS + ", " + SHORT_COUNTERS + " and " + MORRIS_COUNTERS + " (Morris) bits");
+        int countersPerInt = 32 / counterBits;
+        return (size(nbOfHashes, logNbOfBuckets, nbOfClasses) + countersPerInt - 1) / countersPerInt;
+    }
+
+    /**
+     * Counts one occurrence of an n-gram in class c
+     *
+     * @param fingerprint The fingerprint of the n-gram (see NgramHash)
+     * @param c The class
+     */
+    public void add(long fingerprint, int c) {
+        long hash = hashing.hash(fingerprint);
+        if (conservative) {
+            addConservatively(hash, c);
+        } else if (counterBits != INT_COUNTERS) {
+            for (int h = 0; h < nbOfHashes; h++)
+                increment(index(h, hashing.bucket(hash, h), c));
+        } else if (concurrent) {
+            for (int h = 0; h < nbOfHashes; h++)
+                counts.addAtomic(index(h, hashing.bucket(hash, h), c), 1);
+        } else {
+            for (int h = 0; h < nbOfHashes; h++)
+                counts.add(index(h, hashing.bucket(hash, h), c), 1);
+        }
+    }
+
+    /**
+     * Increments the counters of class c of an n-gram that are at the minimum over the rows
+     *
+     * @param hash The hash of the n-gram, see SketchHashing.hash()
+     */
+    private void addConservatively(long hash, int c) {
+        int min = Integer.MAX_VALUE;
+        for (int h = 0; h < nbOfHashes; h++)
+            min = Math.min(min, raw(index(h, hashing.bucket(hash, h), c)));
+        if (counterBits != INT_COUNTERS && min == counterMask)
+            return;
+        // all the counters at the minimum hold the same exponent, so one draw decides for all of them
+        if (counterBits == MORRIS_COUNTERS && nextDouble() >= MORRIS_PROBABILITIES[min])
+            return;
+        for (int h = 0; h < nbOfHashes; h++)
+            raise(index(h, hashing.bucket(hash, h), c), min);
+    }
+
+    /**
+     * Increments counter k by one step if it holds the value min
+     */
+    private void raise(int k, int min) {
+        if (counterBits == INT_COUNTERS) {
+            if (concurrent)
+                counts.compareAndSet(k, min, min + 1);
+            else if (counts.get(k) == min)
+                counts.set(k, min + 1);
+            return;
+        }
+        int word = k >>> packShift;
+        int shift = (k & ((1 << packShift) - 1)) * counterBits;
+        while (true) {
+            int value = counts.get(word);
+            if (((value >>> shift) & counterMask) != min)
+                return;
+            if (!concurrent) {
+                counts.set(word, value + (1 << shift));
+                return;
+            }
+            if (counts.compareAndSet(word, value, value + (1 << shift)))
+                return;
+        }
+    }
+
+    /**
+     * Estimates the counts of an n-gram in every class: the minimum of its counters over the rows
+     *
+     * @param fingerprint The fingerprint of the n-gram (see NgramHash)
+     * @param min The array for the estimates, of length nbOfClasses at least: min[c] is the count in class c
+     */
+    public void minCounts(long fingerprint, int[] min) {
+        if (nbOfClasses == 2) {
+            long pair = minCountPair(fingerprint);
+            min[0] = (int) pair;
+            min[1] = (int) (pair >>> 32);
+            return;
+        }
+        long hash = hashing.hash(fingerprint);
+        for (int c = 0; c < nbOfClasses; c++)
+            min[c] = Integer.MAX_VALUE;
+        for (int h = 0; h < nbOfHashes; h++) {
+            int cell = index(h, hashing.bucket(hash, h), 0);
+            for (int c = 0; c < nbOfClasses; c++)
+                min[c] = Math.min(min[c], raw(cell + c));
+        }
+        // the minimum of the packed counters is that of the counts, as a count grows with its counter
+        for (int c = 0; c < nbOfClasses; c++)
+            min[c] = decode(min[c]);
+    }
+
+    /**
+     * Estimates the counts of an n-gram in both classes of a 2-class sketch, with the minima in registers and
+     * without an array, so a scorer needs no scratch space
+     *
+     * @param fingerprint The fingerprint of the n-gram (see NgramHash)
+     * @return The count in class 0 in the low 32 bits, the count in class 1 in the high 32 bits
+     * @throws IllegalStateException if the sketch does not have 2 classes
+     */
+    public long minCountPair(long fingerprint) {
+        if (nbOfClasses != 2)
+            throw new IllegalStateException("A sketch with " + nbOfClasses + " classes has no count pairs");
+        long hash = hashing.hash(fingerprint);
+        int min0 = Integer.MAX_VALUE;
+        int min1 = Integer.MAX_VALUE;
+        if (counterBits == INT_COUNTERS) {
+            for (int h = 0; h < nbOfHashes; h++) {
+                int cell = (h * nbOfBuckets + hashing.bucket(hash, h)) << 1;
+                min0 = Math.min(min0, counts.get(cell));
+                min1 = Math.min(min1, counts.get(cell + 1));
+            }
+        } else {
+            // both counters of a cell are in one int, as a cell starts at an even counter
+            for (int h = 0; h < nbOfHashes; h++) {
+                int cell = (h * nbOfBuckets + hashing.bucket(hash, h)) << 1;
+                int word = counts.get(cell >>> packShift);
+                int shift = (cell & ((1 << packShift) - 1)) * counterBits;
+                min0 = Math.min(min0, (word >>> shift) & counterMask);
+                min1 = Math.min(min1, (word >>> (shift + counterBits)) & counterMask);
+            }
+            min0 = decode(min0);
+            min1 = decode(min1);
+        }
+        return (long) min1 << 32 | (min0 & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param fingerprint The fingerprint of an n-gram (see NgramHash)
+     * @param c The class
+     * @return The estimated count of the n-gram in class c
+     */
+    public int minCount(long fingerprint, int c) {
+        long hash = hashing.hash(fingerprint);
+        int min = Integer.MAX_VALUE;
+        for (int h = 0; h < nbOfHashes; h++)
+            min = Math.min(min, raw(index(h, hashing.bucket(hash, h), c)));
+        return decode(min);
+    }
+
+    /**
+     * Adds the counts of another sketch to this one. The initial count of the other sketch is not added again.
+     * The other sketch should not change during the merge.
+     *
+     * @param other A sketch with the same number of rows, buckets and classes and the same seed
+     */
+    public void merge(CountMinSketch other) {
+        if (other.nbOfHashes != nbOfHashes || other.nbOfBuckets != nbOfBuckets || other.nbOfClasses != nbOfClasses
+                || other.hashing.getSeed() != hashing.getSeed() || other.counterBits != counterBits)
+            throw new IllegalArgumentException("Can not merge a sketch of " + other.nbOfHashes + " x "
+                    + other.nbOfBuckets + " x " + other.nbOfClasses + " counters of " + other.counterBits
+                    + " bits (seed " + other.hashing.getSeed() + ") into a sketch of " + nbOfHashes + " x "
+                    + nbOfBuckets + " x " + nbOfClasses + " counters of " + counterBits + " bits (seed "
+                    + hashing.getSeed() + ")");
+        int offset = other.initialCount;
+        if (counterBits != INT_COUNTERS) {
+            int size = nbOfHashes * nbOfBuckets * nbOfClasses;
+            for (int k = 0; k < size; k++) {
+                int otherCount = decode(other.raw(k)) - offset;
+                if (otherCount != 0)
+                    mergeCount(k, otherCount);
+            }
+        } else if (concurrent) {
+            for (int i = 0; i < counts.length(); i++)
+                counts.addAtomic(i, other.counts.get(i) - offset);
+        } else {
+            for (int i = 0; i < counts.length(); i++)
+                counts.add(i, other.counts.get(i) - offset);
+        }
+    }
+
+    /**
+     * Writes the counters to a model snapshot
+     */
+    void writeCounts(ModelSnapshot.Writer out) throws IOException {
+        out.writeInts(counts);
+    }
+
+    /**
+     * @param h The row
+     * @param i The bucket
+     * @param c The class
+     * @return The counter of class c in bucket i of row h
+     */
+    public int getCount(int h, int i, int c) {
+        return decode(raw(index(h, i, c)));
+    }
+
+    /**
+     * @return The value of counter k: the count, or the exponent of a Morris counter
+     */
+    private int raw(int k) {
+        if (counterBits == INT_COUNTERS)
+            return counts.get(k);
+        int shift = (k & ((1 << packShift) - 1)) * counterBits;
+        return (counts.get(k >>> packShift) >>> shift) & counterMask;
+    }
+
+    /**
+     * @return The count that the value of a counter stands for
+     */
+    private int decode(int raw) {
+        return counterBits == MORRIS_COUNTERS ? MORRIS_VALUES[raw] : raw;
+    }
+
+    /**
+     * @return The value of a counter that stands for a count, the nearest one for a Morris counter
+     */
+    private int encode(int count) {
+        if (counterBits == INT_COUNTERS)
+            return count;
+        if (counterBits == SHORT_COUNTERS)
+            return Math.min(count, counterMask);
+        int raw = (int) Math.round(Math.log1p(MORRIS_RATE * count) / Math.log1p(MORRIS_RATE));
+        return Math.min(raw, counterMask);
+    }
+
+    /**
+     * Counts one occurrence in packed counter k, unless it is saturated
+     */
+    private void increment(int k) {
+        int word = k >>> packShift;
+        int shift = (k & ((1 << packShift) - 1)) * counterBits;
+        while (true) {
+            int value = counts.get(word);
+            int raw = (value >>> shift) & counterMask;
+            if (raw == counterMask)
+                return;
+            if (counterBits == MORRIS_COUNTERS && nextDouble() >= MORRIS_PROBABILITIES[raw])
+                return;
+            if (!concurrent) {
+                counts.set(word, value + (1 << shift));
+                return;
+            }
+            if (counts.compareAndSet(word, value, value + (1 << shift)))
+                return;
+        }
+    }
+
+    /**
+     * Adds count to the count of packed counter k, saturated, or rounded to the nearest Morris exponent
+     */
+    private void mergeCount(int k, int count) {
+        int word = k >>> packShift;
+        int shift = (k & ((1 << packShift) - 1)) * counterBits;
+        while (true) {
+            int value = counts.get(word);
+            int raw = encode((int) Math.min((long) decode((value >>> shift) & counterMask) + count, Integer.MAX_VALUE));
+            int newValue = (value & ~(counterMask << shift)) | (raw << shift);
+            if (!concurrent) {
+                counts.set(word, newValue);
+                return;
+            }
+            if (counts.compareAndSet(word, value, newValue))
+                return;
+        }
+    }
+
+    private double nextDouble() {
+        return random != null ? random.nextDouble() : ThreadLocalRandom.current().nextDouble();
+    }
+
+    private int index(int h, int i, int c) {
+        return (h * nbOfBuckets + i) * nbOfClasses + c;
+    }
+
+    /**
+     * @return The hash functions of the sketch
+     */
+    public SketchHashing getHashing() {
+        return hashing;
+    }
+
+    public int getNbOfHashes() {
+        return nbOfHashes;
+    }
+
+    public int getNbOfBuckets() {
+        return nbOfBuckets;
+    }
+
+    public int getNbOfClasses() {
+        return nbOfClasses;
+    }
+
+    /**
+     * @return The initial value of every counter
+     */
+    public int getInitialCount() {
+        return initialCount;
+    }
+
+    /**
+     * @return The width of the counters in bits: INT_COUNTERS, SHORT_COUNTERS or MORRIS_COUNTERS
+     */
+    public int getCounterBits() {
+        return counterBits;
+    }
+
+    /**
+     * @return true if add() only increments the counters at the minimum
+     */
+    public boolean isConservative() {
+        return conservative;
+    }
+
+    /**
+     * @return true if several threads can add n-grams at the same time
+     */
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+}
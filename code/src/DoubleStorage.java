@@ -0,0 +1,268 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * This class is the storage of an array of double weights of a classifier, see IntStorage.
+ */
+public abstract class DoubleStorage {
+
+    static final int CHUNK_SHIFT = 27; // 2^27 doubles, 1 GB per buffer
+
+    /**
+     * @param length The number of weights
+     * @return Weights in a Java array, all 0
+     */
+    public static DoubleStorage onHeap(int length) {
+        return new Heap(new double[length]);
+    }
+
+    /**
+     * Allocates the weights outside the Java heap, in direct buffers. The garbage collector then neither scans nor
+     * copies them, however large they are; their memory is freed when the storage is collected. The JVM limits the
+     * direct memory to the maximum heap size by default, see -XX:MaxDirectMemorySize.
+     *
+     * @param length The number of weights
+     * @return Weights outside the heap, all 0
+     */
+    public static DoubleStorage offHeap(int length) {
+        ByteBuffer[] chunks = new ByteBuffer[(int) (((long) length + (1 << CHUNK_SHIFT) - 1) >>> CHUNK_SHIFT)];
+        for (int k = 0; k < chunks.length; k++) {
+            long chunkLength = Math.min(1L << CHUNK_SHIFT, length - ((long) k << CHUNK_SHIFT));
+            chunks[k] = ByteBuffer.allocateDirect((int) (8 * chunkLength)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new Buffers(chunks, length);
+    }
+
+    /**
+     * @param length The number of weights
+     * @param offHeap If true, see offHeap(), otherwise onHeap()
+     * @return Weights, all 0
+     */
+    public static DoubleStorage allocate(int length, boolean offHeap) {
+        return offHeap ? offHeap(length) : onHeap(length);
+    }
+
+    /**
+     * Maps a region of a file read-only
+     *
+     * @param channel The file, open for reading
+     * @param position The offset of the first weight in the file, a multiple of 8
+     * @param length The number of weights
+     * @return Read-only weights over the region
+     * @throws IOException if the region can not be mapped
+     */
+    public static DoubleStorage mapped(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer[] chunks = new ByteBuffer[(int) (((long) length + (1 << CHUNK_SHIFT) - 1) >>> CHUNK_SHIFT)];
+        for (int k = 0; k < chunks.length; k++) {
+            long chunkLength = Math.min(1L << CHUNK_SHIFT, length - ((long) k << CHUNK_SHIFT));
+            chunks[k] = channel.map(FileChannel.MapMode.READ_ONLY, position + 8 * ((long) k << CHUNK_SHIFT),
+                    8 * chunkLength).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new Buffers(chunks, length);
+    }
+
+    /**
+     * @return The number of weights
+     */
+    public abstract int length();
+
+    public abstract double get(int i);
+
+    public abstract void set(int i, double value);
+
+    /**
+     * Adds delta to weight i. Not atomic.
+     */
+    public void add(int i, double delta) {
+        set(i, get(i) + delta);
+    }
+
+    /**
+     * Reads weight i without locks, but never torn (see VarHandle.getOpaque)
+     */
+    public abstract double getOpaque(int i);
+
+    /**
+     * Writes weight i without locks, but never torn (see VarHandle.setOpaque)
+     */
+    public abstract void setOpaque(int i, double value);
+
+    /**
+     * Sets all the weights to a value
+     */
+    public abstract void fill(double value);
+
+    /**
+     * Copies n weights, from weight from on, into a buffer
+     */
+    public abstract void get(int from, DoubleBuffer dst, int n);
+
+    /**
+     * Copies n weights from a buffer, from weight from on
+     */
+    public abstract void set(int from, DoubleBuffer src, int n);
+
+    /**
+     * @return true if the weights can not be changed
+     */
+    public abstract boolean isReadOnly();
+
+
+    /**
+     * Weights in a Java array
+     */
+    static final class Heap extends DoubleStorage {
+
+        private static final VarHandle ARRAY = MethodHandles.arrayElementVarHandle(double[].class);
+
+        private final double[] weights;
+
+        Heap(double[] weights) {
+            this.weights = weights;
+        }
+
+        @Override
+        public int length() {
+            return weights.length;
+        }
+
+        @Override
+        public double get(int i) {
+            return weights[i];
+        }
+
+        @Override
+        public void set(int i, double value) {
+            weights[i] = value;
+        }
+
+        @Override
+        public void add(int i, double delta) {
+            weights[i] += delta;
+        }
+
+        @Override
+        public double getOpaque(int i) {
+            return (double) ARRAY.getOpaque(weights, i);
+        }
+
+        @Override
+        public void setOpaque(int i, double value) {
+            ARRAY.setOpaque(weights, i, value);
+        }
+
+        @Override
+        public void fill(double value) {
+            Arrays.fill(weights, value);
+        }
+
+        @Override
+        public void get(int from, DoubleBuffer dst, int n) {
+            dst.put(weights, from, n);
+        }
+
+        @Override
+        public void set(int from, DoubleBuffer src, int n) {
+            src.get(weights, from, n);
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return false;
+        }
+    }
+
+    /**
+     * Weights in little endian ByteBuffers of 2^CHUNK_SHIFT weights each (the last one may be shorter)
+     */
+    static final class Buffers extends DoubleStorage {
+
+        private static final VarHandle BUFFER = MethodHandles.byteBufferViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+        private static final int MASK = (1 << CHUNK_SHIFT) - 1;
+
+        private final ByteBuffer[] chunks;
+        private final ByteBuffer single; // the only chunk, or null: saves the chunk lookup of the common case
+        private final int length;
+
+        Buffers(ByteBuffer[] chunks, int length) {
+            this.chunks = chunks;
+            this.single = chunks.length == 1 ? chunks[0] : null;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public double get(int i) {
+            if (single != null)
+                return single.getDouble(i << 3);
+            return chunks[i >>> CHUNK_SHIFT].getDouble((i & MASK) << 3);
+        }
+
+        @Override
+        public void set(int i, double value) {
+            if (single != null)
+                single.putDouble(i << 3, value);
+            else
+                chunks[i >>> CHUNK_SHIFT].putDouble((i & MASK) << 3, value);
+        }
+
+        @Override
+        public double getOpaque(int i) {
+            return (double) BUFFER.getOpaque(chunks[i >>> CHUNK_SHIFT], (i & MASK) << 3);
+        }
+
+        @Override
+        public void setOpaque(int i, double value) {
+            BUFFER.setOpaque(chunks[i >>> CHUNK_SHIFT], (i & MASK) << 3, value);
+        }
+
+        @Override
+        public void fill(double value) {
+            for (ByteBuffer chunk : chunks)
+                for (int index = 0; index < chunk.capacity(); index += 8)
+                    chunk.putDouble(index, value);
+        }
+
+        @Override
+        public void get(int from, DoubleBuffer dst, int n) {
+            while (n > 0) {
+                int k = Math.min(n, (1 << CHUNK_SHIFT) - (from & MASK));
+                dst.put(chunks[from >>> CHUNK_SHIFT].asDoubleBuffer().position(from & MASK).limit((from & MASK) + k));
+                from += k;
+                n -= k;
+            }
+        }
+
+        @Override
+        public void set(int from, DoubleBuffer src, int n) {
+            while (n > 0) {
+                int k = Math.min(n, (1 << CHUNK_SHIFT) - (from & MASK));
+                DoubleBuffer slice = src.duplicate();
+                slice.limit(slice.position() + k);
+                chunks[from >>> CHUNK_SHIFT].asDoubleBuffer().position(from & MASK).put(slice);
+                src.position(src.position() + k);
+                from += k;
+                n -= k;
+            }
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return chunks.length > 0 && chunks[0].isReadOnly();
+        }
+    }
+}
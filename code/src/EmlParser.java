@@ -9,7 +9,9 @@ import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 import java.io.*;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -23,8 +25,21 @@ import java.util.regex.Pattern;
  */
 public class EmlParser {
 
+    /**
+     * The default number of words in the stem cache of each parser thread
+     */
+    public static final int DEFAULT_STEM_CACHE_SIZE = 1 << 16;
+
     private Set<String> stopWords;
     private int n;
+    private boolean hashNgrams;
+    // the stem caches of the live threads, by thread, for their hits and misses; the caches of the threads that have
+    // ended are dropped (see register()), so only the ThreadLocal keeps a cache alive
+    private final List<Thread> cacheThreads = new ArrayList<>();
+    private final List<StemCache> stemCaches = new ArrayList<>();
+    private long endedHits = 0; // the hits of the caches of the threads that have ended
+    private long endedMisses = 0;
+    private final ThreadLocal<StemCache> stemCache;
 
     /**
      * Initialize the parser
@@ -34,7 +49,38 @@ public class EmlParser {
      * @throws IOException
      */
     public EmlParser(String stopWordsPath, int n) throws IOException {
+        this(stopWordsPath, n, DEFAULT_STEM_CACHE_SIZE);
+    }
+
+    /**
+     * Initialize the parser
+     *
+     * @param stopWordsPath Path to the file with stop words, i.e. words to ignore in e-mails
+     * @param n The maximum n for n-grams. E.g. if n=3 the parser extracts single words, pairs and triples.
+     * @param stemCacheSize The number of words in the stem cache of each thread that parses e-mails
+     * @throws IOException
+     */
+    public EmlParser(String stopWordsPath, int n, int stemCacheSize) throws IOException {
+        this(stopWordsPath, n, stemCacheSize, false);
+    }
+
+    /**
+     * Initialize the parser
+     *
+     * @param stopWordsPath Path to the file with stop words, i.e. words to ignore in e-mails
+     * @param n The maximum n for n-grams. E.g. if n=3 the parser extracts single words, pairs and triples.
+     * @param stemCacheSize The number of words in the stem cache of each thread that parses e-mails
+     * @param hashNgrams If true, the parsed texts only hold the fingerprints of the n-grams, not the strings
+     * @throws IOException
+     */
+    public EmlParser(String stopWordsPath, int n, int stemCacheSize, boolean hashNgrams) throws IOException {
         this.n = n;
+        this.hashNgrams = hashNgrams;
+        this.stemCache = ThreadLocal.withInitial(() -> {
+            StemCache cache = new StemCache(stemCacheSize);
+            register(cache);
+            return cache;
+        });
         stopWords = new HashSet<>();
         stopWords.add("");
         BufferedReader in = new BufferedReader(new FileReader(stopWordsPath));
@@ -52,7 +98,59 @@ public class EmlParser {
      * @return The parsed text
      */
     public ParsedText parse(String emlPath) {
-        return new ParsedText(getNgrams(emlPath, n, stopWords));
+        if (hashNgrams)
+            return new ParsedText(getNgramFingerprints(emlPath, n, stopWords, stemCache.get()));
+        return new ParsedText(getNgrams(emlPath, n, stopWords, stemCache.get()));
+    }
+
+    /**
+     * Registers the stem cache of the current thread, and drops the caches of the threads that have ended, keeping
+     * their hits and misses. Every stream starts new parser threads, so the caches would pile up otherwise.
+     */
+    private void register(StemCache cache) {
+        synchronized (stemCaches) {
+            dropEndedThreads();
+            cacheThreads.add(Thread.currentThread());
+            stemCaches.add(cache);
+        }
+    }
+
+    private void dropEndedThreads() {
+        for (int i = stemCaches.size() - 1; i >= 0; i--) {
+            if (!cacheThreads.get(i).isAlive()) {
+                endedHits += stemCaches.get(i).getHits();
+                endedMisses += stemCaches.get(i).getMisses();
+                cacheThreads.remove(i);
+                stemCaches.remove(i);
+            }
+        }
+    }
+
+    /**
+     * @return The number of words that were found in the stem caches. While e-mails are being parsed, this is
+     *         an approximation.
+     */
+    public long getStemCacheHits() {
+        synchronized (stemCaches) {
+            dropEndedThreads();
+            long hits = endedHits;
+            for (StemCache cache : stemCaches)
+                hits += cache.getHits();
+            return hits;
+        }
+    }
+
+    /**
+     * @return The number of words that were not found in the stem caches and had to be stemmed.
+     */
+    public long getStemCacheMisses() {
+        synchronized (stemCaches) {
+            dropEndedThreads();
+            long misses = endedMisses;
+            for (StemCache cache : stemCaches)
+                misses += cache.getMisses();
+            return misses;
+        }
     }
 
     /**
@@ -63,7 +161,7 @@ public class EmlParser {
      * @throws IOException
      * @throws MessagingException
      */
-    private static String getSubjectAndBody(String emlPath) throws IOException, MessagingException {
+    static String getSubjectAndBody(String emlPath) throws IOException, MessagingException {
 
         Properties props = System.getProperties();
         props.put("mail.host", "smtp.dummydomain.com");
@@ -84,22 +182,25 @@ public class EmlParser {
         return subject+" "+body;
     }
 
+    private static final Pattern REMOVE = Pattern.compile("(<.*?>)|([sS][pP][aA][mM])|([^A-Za-z\\s\\._,/\\\\])");
+    private static final Pattern SPACE = Pattern.compile("[^A-Za-z0-9\\s]");
+
+    /**
+     * Each thread that parses e-mails reuses its own tokenizer
+     */
+    private static final ThreadLocal<Tokenizer> TOKENIZER = ThreadLocal.withInitial(Tokenizer::new);
+
     /**
      * Clean the given text. Cleaning means removing html tags and punctuation
      *
+     * This is the reference definition of the words of an e-mail. The parser uses the Tokenizer, which
+     * produces the same words in a single pass.
+     *
      * @param text The text to clean
      * @return Cleaned text
      */
-    private static String cleanText(String text) {
-        String htmlTag = "<.*?>";
-        String spam = "[sS][pP][aA][mM]";
-        String nonText = "[^A-Za-z\\s\\._,/\\\\]";
-
-        Pattern pRemove = Pattern.compile("("+htmlTag+")|("+spam+")|("+nonText+")");
-        Pattern pSpace = Pattern.compile("[^A-Za-z0-9\\s]");
-
-        return pSpace.matcher(pRemove.matcher(text).replaceAll("")).replaceAll(" ");
-
+    static String cleanText(String text) {
+        return SPACE.matcher(REMOVE.matcher(text).replaceAll("")).replaceAll(" ");
     }
 
 
@@ -112,25 +213,22 @@ public class EmlParser {
      * @return Set of clean N-grams
      */
     public static Set<String> getNgrams(String emlPath, int n, Set<String> stopWords){
+        return getNgrams(emlPath, n, stopWords, new StemCache(0));
+    }
+
+    /**
+     * Extract clean n-grams from a raw e-mail file, looking up the stems of the words in a cache.
+     *
+     * @param emlPath Path of the e-mail
+     * @param n The maximum n for n-grams. E.g. if n=3 the parser extracts single words, pairs and triples.
+     * @param stopWords Set of stopwords to be removed from the text. The stopwords are expected to be stemmed.
+     * @param stemCache The stem cache of the calling thread
+     * @return Set of clean N-grams
+     */
+    public static Set<String> getNgrams(String emlPath, int n, Set<String> stopWords, StemCache stemCache){
         try{
-            //get the words from the body and subject
-            String subjectAndBody = cleanText(getSubjectAndBody(emlPath));
-            String[] words = subjectAndBody.split("\\s+");
-
-            // Stem all the word. Stemming reduces inflected (or sometimes derived) words to their word stem.
-            // The goal of stemming is to map related words (e.g eat, eats, eating) to the same stem.
-            // Meanwhile, remove the stop words
-            PorterStemmer stemmer = new PorterStemmer();
+            String[] words = getStemmedWords(emlPath, stopWords, stemCache);
             Set<String> ngrams = new HashSet<>();
-            for (int i =0; i<words.length; i++) {
-                String stemmed = stemmer.stem(words[i]);
-                if (stopWords.contains(stemmed)) {
-                    words[i]=null;
-                }
-                else{
-                    words[i]=stemmed;
-                }
-            }
 
             //Extract n-grams from the stemmed sequence of words
             for (int i =0; i<words.length; i++){
@@ -153,5 +251,72 @@ public class EmlParser {
         }
     }
 
+    /**
+     * Extract the fingerprints of the clean n-grams from a raw e-mail file (see NgramHash).
+     *
+     * The fingerprints are the same as the fingerprints of the n-grams of getNgrams, but they are computed
+     * from the fingerprints of the words, without building the n-grams.
+     *
+     * @param emlPath Path of the e-mail
+     * @param n The maximum n for n-grams. E.g. if n=3 the parser extracts single words, pairs and triples.
+     * @param stopWords Set of stopwords to be removed from the text. The stopwords are expected to be stemmed.
+     * @param stemCache The stem cache of the calling thread
+     * @return The sorted, distinct fingerprints of the n-grams
+     */
+    public static long[] getNgramFingerprints(String emlPath, int n, Set<String> stopWords, StemCache stemCache){
+        try{
+            String[] words = getStemmedWords(emlPath, stopWords, stemCache);
+
+            // the fingerprints of the words that are not stop words
+            long[] wordFingerprints = new long[words.length];
+            int nbOfWords = 0;
+            for (String word : words)
+                if (word != null)
+                    wordFingerprints[nbOfWords++] = NgramHash.word(word);
+
+            //Extract n-grams from the stemmed sequence of words
+            long[] ngrams = new long[nbOfWords * Math.max(n, 0)];
+            int nbOfNgrams = 0;
+            for (int i = 0; n > 0 && i < nbOfWords; i++) {
+                long ngram = wordFingerprints[i];
+                ngrams[nbOfNgrams++] = ngram;
+                for (int j = i + 1; j < i + n && j < nbOfWords; j++) {
+                    ngram = NgramHash.combine(ngram, wordFingerprints[j]);
+                    ngrams[nbOfNgrams++] = ngram;
+                }
+            }
+
+            return NgramHash.sortDistinct(ngrams, nbOfNgrams);
+        } catch (Exception e) {
+            return new long[0];
+        }
+    }
+
+    /**
+     * Get the stemmed words of an e-mail, with null for the stop words.
+     */
+    private static String[] getStemmedWords(String emlPath, Set<String> stopWords, StemCache stemCache) throws IOException, MessagingException {
+        //get the words from the body and subject
+        Tokenizer tokenizer = TOKENIZER.get();
+        tokenizer.tokenize(getSubjectAndBody(emlPath));
+        char[] buffer = tokenizer.getBuffer();
+        String[] words = new String[tokenizer.getNbOfWords()];
+
+        // Stem all the word. Stemming reduces inflected (or sometimes derived) words to their word stem.
+        // The goal of stemming is to map related words (e.g eat, eats, eating) to the same stem.
+        // Meanwhile, remove the stop words
+        for (int i =0; i<words.length; i++) {
+            int start = tokenizer.getStart(i);
+            String stemmed = stemCache.stem(buffer, start, tokenizer.getEnd(i) - start);
+            if (stopWords.contains(stemmed)) {
+                words[i]=null;
+            }
+            else{
+                words[i]=stemmed;
+            }
+        }
+        return words;
+    }
+
 
 }
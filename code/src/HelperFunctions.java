@@ -61,4 +61,93 @@ public class HelperFunctions {
     	
     }
 
-}
\ No newline at end of file
+    /**
+     * Sorts the first length values of an array and groups the equal values: afterwards the first k values of the
+     * array are the distinct values in ascending order, and counts[i] holds how often values[i] occurred.
+     * @param values The values, which are reordered in place
+     * @param length The number of values to use
+     * @param counts The array for the counts, of length k at least
+     * @return k, the number of distinct values
+     */
+    public static int countDistinct(int[] values, int length, int[] counts) {
+    	Arrays.sort(values, 0, length);
+    	int nbOfDistinct = 0;
+    	for (int i = 0; i < length; i++) {
+    		if (nbOfDistinct > 0 && values[i] == values[nbOfDistinct - 1]) {
+    			counts[nbOfDistinct - 1]++;
+    		} else {
+    			values[nbOfDistinct] = values[i];
+    			counts[nbOfDistinct] = 1;
+    			nbOfDistinct++;
+    		}
+    	}
+    	return nbOfDistinct;
+    }
+
+    /**
+     * Sorts the first length values of an array and groups the equal values, see countDistinct(int[], int, int[]).
+     * @param values The values, which are reordered in place
+     * @param length The number of values to use
+     * @param counts The array for the counts, of length k at least
+     * @return k, the number of distinct values
+     */
+    public static int countDistinct(long[] values, int length, int[] counts) {
+    	Arrays.sort(values, 0, length);
+    	int nbOfDistinct = 0;
+    	for (int i = 0; i < length; i++) {
+    		if (nbOfDistinct > 0 && values[i] == values[nbOfDistinct - 1]) {
+    			counts[nbOfDistinct - 1]++;
+    		} else {
+    			values[nbOfDistinct] = values[i];
+    			counts[nbOfDistinct] = 1;
+    			nbOfDistinct++;
+    		}
+    	}
+    	return nbOfDistinct;
+    }
+
+    /**
+     * Checks whether a flag is given among the optional command line arguments.
+     * @param args The command line arguments
+     * @param from The index of the first optional argument
+     * @param flag The flag, e.g. "-writeOutAllPredictions"
+     * @return true if the flag is present
+     */
+    public static boolean hasFlag(String[] args, int from, String flag) {
+    	for (int i = from; i < args.length; i++)
+    		if (args[i].equals(flag))
+    			return true;
+    	return false;
+    }
+
+    /**
+     * Reads an integer option of the form "-name=value" among the optional command line arguments.
+     * @param args The command line arguments
+     * @param from The index of the first optional argument
+     * @param option The option name, e.g. "-parseThreads"
+     * @param defaultValue The value to use when the option is absent
+     * @return the value of the option
+     */
+    public static int getIntOption(String[] args, int from, String option, int defaultValue) {
+    	for (int i = from; i < args.length; i++)
+    		if (args[i].startsWith(option + "="))
+    			return Integer.parseInt(args[i].substring(option.length() + 1));
+    	return defaultValue;
+    }
+
+    /**
+     * Reads a string option of the form "-name=value" among the optional command line arguments.
+     * @param args The command line arguments
+     * @param from The index of the first optional argument
+     * @param option The option name, e.g. "-save"
+     * @param defaultValue The value to use when the option is absent
+     * @return the value of the option
+     */
+    public static String getStringOption(String[] args, int from, String option, String defaultValue) {
+    	for (int i = from; i < args.length; i++)
+    		if (args[i].startsWith(option + "="))
+    			return args[i].substring(option.length() + 1);
+    	return defaultValue;
+    }
+
+}
@@ -0,0 +1,255 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+
+/**
+ * This class searches the hyper-parameters of the classifiers.
+ *
+ * The mail stream is parsed once per maxN into fingerprints that are kept in memory. Then every configuration of the
+ * grid (or a random sample of it) is trained and evaluated prequentially on them, like in
+ * OnlineTextClassifier.makeLearningCurve(), and the configurations run in parallel on a fork-join pool. Every
+ * configuration gets two scores per evaluation metric: the final score, on the last batch, and the area under the
+ * learning curve, the mean score over all the e-mails. The latter also rewards the models that learn fast. The
+ * configurations are ranked on the area under the learning curve of one metric.
+ *
+ * Usage:
+ *   java HyperParameterSweep <indexPath> <stopWordsPath> <reportingPeriod> <model>... [options]
+ * Models: as in MultiModelEvaluation, but every parameter can be a comma separated list of values, e.g.
+ *   nbcms:16,18,20:1,5,10:0.3,0.5 is the grid of 18 count-min sketches
+ * Options:
+ *   -maxN=<n,...>       The maximum n of the n-grams (default: 2). A compiled corpus has only its own maxN.
+ *   -parseThreads=<n>   The number of threads that parse the e-mails
+ *   -hashNgrams         Parse the e-mails into fingerprints only
+ *   -threads=<n>        The number of configurations that are evaluated in parallel (default: the number of cores)
+ *   -random=<k>         Evaluate a random sample of k configurations of the grid instead of all of them
+ *   -sampleSeed=<n>     The seed of the random sample
+ *   -seed=<n>           The seed of the hash functions of all the models
+ *   -metric=<name>      The metric that ranks the configurations (default: acc)
+ *   -out=<path>         Also write the scores of all the configurations to a file
+ *   -offHeap            Store the parameters of the models outside the Java heap
+ *   -logTable           Look up the logs of the small counts of the naive Bayes classifiers in a table
+ */
+public class HyperParameterSweep {
+
+    /**
+     * A configuration and its scores
+     */
+    private static class Result {
+
+        final String model; // the description of the model, see MultiModelEvaluation.newModel()
+        final int maxN;
+        double[] finalScores;
+        double[] areas; // the areas under the learning curves
+        long millis;
+
+        Result(String model, int maxN) {
+            this.model = model;
+            this.maxN = maxN;
+        }
+
+        @Override
+        public String toString() {
+            return model + " maxN=" + maxN;
+        }
+    }
+
+    /**
+     * Expands a model description with lists of values into the descriptions of all the models of the grid
+     *
+     * @param description e.g. "nbfh:18,20:0.5"
+     * @return e.g. "nbfh:18:0.5" and "nbfh:20:0.5"
+     */
+    static List<String> expand(String description) {
+        String[] fields = description.split(":");
+        List<String> models = new ArrayList<>();
+        models.add(fields[0]);
+        for (int f = 1; f < fields.length; f++) {
+            List<String> longer = new ArrayList<>();
+            for (String model : models)
+                for (String value : fields[f].split(","))
+                    longer.add(model + ":" + value);
+            models = longer;
+        }
+        return models;
+    }
+
+    /**
+     * Reads a mail stream into memory, as fingerprints only
+     */
+    static List<LabeledText> cache(MailStream stream) {
+        List<LabeledText> examples = new ArrayList<>();
+        Iterator<LabeledText> iterator = stream.iterator();
+        try {
+            while (iterator.hasNext()) {
+                LabeledText example = iterator.next();
+                examples.add(new LabeledText(new ParsedText(example.text.getFingerprints()), example.label));
+            }
+        } finally {
+            MailStream.close(iterator);
+        }
+        return examples;
+    }
+
+    /**
+     * Trains and evaluates a model prequentially on cached e-mails, with the batches of
+     * OnlineTextClassifier.makeLearningCurve()
+     *
+     * @param model An untrained model
+     * @param examples The e-mails
+     * @param evals The evaluation metrics
+     * @param reportingPeriod The largest batch
+     * @param result Gets the final scores and the areas under the learning curves
+     */
+    static void evaluate(OnlineTextClassifier model, List<LabeledText> examples, EvaluationMetric[] evals,
+                         int reportingPeriod, Result result) {
+        double[] finalScores = new double[evals.length];
+        double[] sums = new double[evals.length]; // the scores weighted by the sizes of the batches
+        int[] nbOfScored = new int[evals.length]; // the e-mails of the batches with a score (not NaN)
+
+        int nbToTest = 10;
+        for (int from = 0; from < examples.size(); from += nbToTest, nbToTest = Math.min(reportingPeriod, nbToTest * 2)) {
+            List<LabeledText> batch = examples.subList(from, Math.min(examples.size(), from + nbToTest));
+            ConfusionMatrix confusion = ConfusionMatrix.of(model, batch);
+            for (int e = 0; e < evals.length; e++) {
+                finalScores[e] = confusion.evaluate(evals[e]);
+                if (!Double.isNaN(finalScores[e])) {
+                    sums[e] += finalScores[e] * batch.size();
+                    nbOfScored[e] += batch.size();
+                }
+            }
+            model.updateBatch(batch);
+        }
+
+        result.finalScores = finalScores;
+        result.areas = new double[evals.length];
+        for (int e = 0; e < evals.length; e++)
+            result.areas[e] = nbOfScored[e] == 0 ? Double.NaN : sums[e] / nbOfScored[e];
+    }
+
+    /**
+     * @return The index of the metric with the given name
+     */
+    private static int indexOf(EvaluationMetric[] evals, String name) {
+        for (int e = 0; e < evals.length; e++)
+            if (evals[e].name().equals(name))
+                return e;
+        throw new IllegalArgumentException("Unknown metric " + name);
+    }
+
+    /**
+     * This runs the hyper-parameter sweep.
+     */
+    public static void main(String[] args) throws IOException {
+        int a = 3;
+        while (a < args.length && !args[a].startsWith("-"))
+            a++;
+        if (a < 4) {
+            System.err.println("Usage: java HyperParameterSweep <indexPath> <stopWordsPath> <reportingPeriod> <model>... [-maxN=<n,...>] [-parseThreads=<n>] [-hashNgrams] [-threads=<n>] [-random=<k>] [-sampleSeed=<n>] [-seed=<n>] [-metric=<name>] [-out=<path>] [-offHeap] [-logTable]");
+            System.err.println("Models: as in MultiModelEvaluation, every parameter can be a comma separated list of values, e.g. nbcms:16,18,20:1,5,10:0.3,0.5");
+            throw new Error("Expected at least 4 arguments, got " + args.length + ".");
+        }
+        String indexPath = args[0];
+        String stopWordsPath = args[1];
+        int reportingPeriod = Integer.parseInt(args[2]);
+        String maxNs = HelperFunctions.getStringOption(args, a, "-maxN", "2");
+        int nbOfParseThreads = HelperFunctions.getIntOption(args, a, "-parseThreads", 1);
+        boolean hashNgrams = HelperFunctions.hasFlag(args, a, "-hashNgrams");
+        int nbOfThreads = HelperFunctions.getIntOption(args, a, "-threads", Runtime.getRuntime().availableProcessors());
+        int sampleSize = HelperFunctions.getIntOption(args, a, "-random", 0);
+        int sampleSeed = HelperFunctions.getIntOption(args, a, "-sampleSeed", 0);
+        int seed = HelperFunctions.getIntOption(args, a, "-seed", OnlineTextClassifier.DEFAULT_SEED);
+        String metricName = HelperFunctions.getStringOption(args, a, "-metric", "acc");
+        String outPath = HelperFunctions.getStringOption(args, a, "-out", null);
+        boolean offHeap = HelperFunctions.hasFlag(args, a, "-offHeap");
+        boolean logTable = HelperFunctions.hasFlag(args, a, "-logTable");
+
+        EvaluationMetric[] evaluationMetrics = {new Accuracy(), new Recall(), new Precision(), new F1Score(),
+                new BalancedAccuracy()};
+        int rankingMetric = indexOf(evaluationMetrics, metricName);
+
+        // the configurations
+        List<Result> results = new ArrayList<>();
+        for (String maxN : maxNs.split(","))
+            for (int m = 3; m < a; m++)
+                for (String model : expand(args[m]))
+                    results.add(new Result(model, Integer.parseInt(maxN)));
+        if (sampleSize > 0 && sampleSize < results.size()) {
+            Collections.shuffle(results, new Random(sampleSeed));
+            results = new ArrayList<>(results.subList(0, sampleSize));
+            results.sort(Comparator.comparingInt((Result result) -> result.maxN));
+        }
+        System.out.println("Evaluating " + results.size() + " configurations on " + nbOfThreads + " threads");
+
+        DecimalFormat df = new DecimalFormat("0.000");
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(nbOfThreads);
+        try {
+            for (int from = 0; from < results.size(); ) {
+                // the configurations with the same maxN share the cached e-mails
+                int maxN = results.get(from).maxN;
+                int to = from;
+                while (to < results.size() && results.get(to).maxN == maxN)
+                    to++;
+
+                long parseStart = System.nanoTime();
+                List<LabeledText> examples = cache(MailStream.open(indexPath, stopWordsPath, maxN, nbOfParseThreads, hashNgrams));
+                System.out.println("Parsed " + examples.size() + " e-mails with maxN=" + maxN + " in "
+                        + (System.nanoTime() - parseStart) / 1000000 + " ms");
+
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                for (Result result : results.subList(from, to)) {
+                    tasks.add(pool.submit(() -> {
+                        long runStart = System.nanoTime();
+                        OnlineTextClassifier model = MultiModelEvaluation.newModel(result.model, seed, offHeap, logTable);
+                        evaluate(model, examples, evaluationMetrics, reportingPeriod, result);
+                        result.millis = (System.nanoTime() - runStart) / 1000000;
+                        System.out.println(result + "\t" + metricName + ": " + df.format(result.finalScores[rankingMetric])
+                                + "\tarea: " + df.format(result.areas[rankingMetric]) + "\t" + result.millis + " ms");
+                    }));
+                }
+                for (ForkJoinTask<?> task : tasks)
+                    task.join();
+                from = to;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        System.out.println("Evaluated " + results.size() + " configurations in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        // the ranking, best first (the configurations without a score last)
+        int r = rankingMetric;
+        results.sort(Comparator.comparingDouble((Result result) -> Double.isNaN(result.areas[r]) ? Double.POSITIVE_INFINITY : -result.areas[r])
+                .thenComparingDouble(result -> Double.isNaN(result.finalScores[r]) ? Double.POSITIVE_INFINITY : -result.finalScores[r]));
+        System.out.println("Rank\tarea\tfinal\tconfiguration");
+        for (int i = 0; i < results.size(); i++)
+            System.out.println((i + 1) + "\t" + df.format(results.get(i).areas[r]) + "\t"
+                    + df.format(results.get(i).finalScores[r]) + "\t" + results.get(i));
+
+        if (outPath != null) {
+            try (PrintWriter out = new PrintWriter(outPath)) {
+                String header = "model\tmaxN";
+                for (EvaluationMetric metric : evaluationMetrics)
+                    header += "\t" + metric.name() + "\t" + metric.name() + ".area";
+                out.println(header + "\tms");
+                for (Result result : results) {
+                    String line = result.model + "\t" + result.maxN;
+                    for (int e = 0; e < evaluationMetrics.length; e++)
+                        line += "\t" + result.finalScores[e] + "\t" + result.areas[e];
+                    out.println(line + "\t" + result.millis);
+                }
+            }
+        }
+    }
+}
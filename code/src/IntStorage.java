@@ -0,0 +1,283 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * This class is the storage of an array of int counters of a classifier.
+ *
+ * The counters live in a Java array (onHeap), or in little endian ByteBuffers outside the heap: direct buffers
+ * (offHeap), so that a large sketch does not weigh on the garbage collector, or a read-only region of a
+ * memory-mapped model snapshot (mapped), so that the scorers on one host share the pages of one file. A buffer
+ * holds at most 2^CHUNK_SHIFT counters, longer arrays are split over several buffers.
+ */
+public abstract class IntStorage {
+
+    static final int CHUNK_SHIFT = 28; // 2^28 ints, 1 GB per buffer
+
+    /**
+     * @param length The number of counters
+     * @return Counters in a Java array, all 0
+     */
+    public static IntStorage onHeap(int length) {
+        return new Heap(new int[length]);
+    }
+
+    /**
+     * Allocates the counters outside the Java heap, in direct buffers. The garbage collector then neither scans nor
+     * copies them, however large they are; their memory is freed when the storage is collected. The JVM limits the
+     * direct memory to the maximum heap size by default, see -XX:MaxDirectMemorySize.
+     *
+     * @param length The number of counters
+     * @return Counters outside the heap, all 0
+     */
+    public static IntStorage offHeap(int length) {
+        ByteBuffer[] chunks = new ByteBuffer[(int) (((long) length + (1 << CHUNK_SHIFT) - 1) >>> CHUNK_SHIFT)];
+        for (int k = 0; k < chunks.length; k++) {
+            long chunkLength = Math.min(1L << CHUNK_SHIFT, length - ((long) k << CHUNK_SHIFT));
+            chunks[k] = ByteBuffer.allocateDirect((int) (4 * chunkLength)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new Buffers(chunks, length);
+    }
+
+    /**
+     * @param length The number of counters
+     * @param offHeap If true, see offHeap(), otherwise onHeap()
+     * @return Counters, all 0
+     */
+    public static IntStorage allocate(int length, boolean offHeap) {
+        return offHeap ? offHeap(length) : onHeap(length);
+    }
+
+    /**
+     * Maps a region of a file read-only
+     *
+     * @param channel The file, open for reading
+     * @param position The offset of the first counter in the file, a multiple of 4
+     * @param length The number of counters
+     * @return Read-only counters over the region
+     * @throws IOException if the region can not be mapped
+     */
+    public static IntStorage mapped(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer[] chunks = new ByteBuffer[(int) (((long) length + (1 << CHUNK_SHIFT) - 1) >>> CHUNK_SHIFT)];
+        for (int k = 0; k < chunks.length; k++) {
+            long chunkLength = Math.min(1L << CHUNK_SHIFT, length - ((long) k << CHUNK_SHIFT));
+            chunks[k] = channel.map(FileChannel.MapMode.READ_ONLY, position + 4 * ((long) k << CHUNK_SHIFT),
+                    4 * chunkLength).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new Buffers(chunks, length);
+    }
+
+    /**
+     * @return The number of counters
+     */
+    public abstract int length();
+
+    public abstract int get(int i);
+
+    public abstract void set(int i, int value);
+
+    /**
+     * Adds delta to counter i. Not atomic, see addAtomic().
+     */
+    public abstract void add(int i, int delta);
+
+    /**
+     * Adds delta to counter i with an atomic read-modify-write, so that concurrent additions are not lost
+     */
+    public abstract void addAtomic(int i, int delta);
+
+    /**
+     * Sets counter i to value if it is expected, as one atomic operation
+     *
+     * @return true if the counter was set
+     */
+    public abstract boolean compareAndSet(int i, int expected, int value);
+
+    /**
+     * Sets all the counters to a value
+     */
+    public abstract void fill(int value);
+
+    /**
+     * Copies n counters, from counter from on, into a buffer
+     */
+    public abstract void get(int from, IntBuffer dst, int n);
+
+    /**
+     * Copies n counters from a buffer, from counter from on
+     */
+    public abstract void set(int from, IntBuffer src, int n);
+
+    /**
+     * @return true if the counters can not be changed
+     */
+    public abstract boolean isReadOnly();
+
+
+    /**
+     * Counters in a Java array
+     */
+    static final class Heap extends IntStorage {
+
+        private static final VarHandle ARRAY = MethodHandles.arrayElementVarHandle(int[].class);
+
+        private final int[] counts;
+
+        Heap(int[] counts) {
+            this.counts = counts;
+        }
+
+        @Override
+        public int length() {
+            return counts.length;
+        }
+
+        @Override
+        public int get(int i) {
+            return counts[i];
+        }
+
+        @Override
+        public void set(int i, int value) {
+            counts[i] = value;
+        }
+
+        @Override
+        public void add(int i, int delta) {
+            counts[i] += delta;
+        }
+
+        @Override
+        public void addAtomic(int i, int delta) {
+            ARRAY.getAndAdd(counts, i, delta);
+        }
+
+        @Override
+        public boolean compareAndSet(int i, int expected, int value) {
+            return ARRAY.compareAndSet(counts, i, expected, value);
+        }
+
+        @Override
+        public void fill(int value) {
+            Arrays.fill(counts, value);
+        }
+
+        @Override
+        public void get(int from, IntBuffer dst, int n) {
+            dst.put(counts, from, n);
+        }
+
+        @Override
+        public void set(int from, IntBuffer src, int n) {
+            src.get(counts, from, n);
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return false;
+        }
+    }
+
+    /**
+     * Counters in little endian ByteBuffers of 2^CHUNK_SHIFT counters each (the last one may be shorter)
+     */
+    static final class Buffers extends IntStorage {
+
+        private static final VarHandle BUFFER = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+        private static final int MASK = (1 << CHUNK_SHIFT) - 1;
+
+        private final ByteBuffer[] chunks;
+        private final ByteBuffer single; // the only chunk, or null: saves the chunk lookup of the common case
+        private final int length;
+
+        Buffers(ByteBuffer[] chunks, int length) {
+            this.chunks = chunks;
+            this.single = chunks.length == 1 ? chunks[0] : null;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public int get(int i) {
+            if (single != null)
+                return single.getInt(i << 2);
+            return chunks[i >>> CHUNK_SHIFT].getInt((i & MASK) << 2);
+        }
+
+        @Override
+        public void set(int i, int value) {
+            if (single != null)
+                single.putInt(i << 2, value);
+            else
+                chunks[i >>> CHUNK_SHIFT].putInt((i & MASK) << 2, value);
+        }
+
+        @Override
+        public void add(int i, int delta) {
+            ByteBuffer chunk = single != null ? single : chunks[i >>> CHUNK_SHIFT];
+            int index = (i & MASK) << 2;
+            chunk.putInt(index, chunk.getInt(index) + delta);
+        }
+
+        @Override
+        public void addAtomic(int i, int delta) {
+            if (single != null)
+                BUFFER.getAndAdd(single, i << 2, delta);
+            else
+                BUFFER.getAndAdd(chunks[i >>> CHUNK_SHIFT], (i & MASK) << 2, delta);
+        }
+
+        @Override
+        public boolean compareAndSet(int i, int expected, int value) {
+            return BUFFER.compareAndSet(chunks[i >>> CHUNK_SHIFT], (i & MASK) << 2, expected, value);
+        }
+
+        @Override
+        public void fill(int value) {
+            for (ByteBuffer chunk : chunks)
+                for (int index = 0; index < chunk.capacity(); index += 4)
+                    chunk.putInt(index, value);
+        }
+
+        @Override
+        public void get(int from, IntBuffer dst, int n) {
+            while (n > 0) {
+                int k = Math.min(n, (1 << CHUNK_SHIFT) - (from & MASK));
+                dst.put(chunks[from >>> CHUNK_SHIFT].asIntBuffer().position(from & MASK).limit((from & MASK) + k));
+                from += k;
+                n -= k;
+            }
+        }
+
+        @Override
+        public void set(int from, IntBuffer src, int n) {
+            while (n > 0) {
+                int k = Math.min(n, (1 << CHUNK_SHIFT) - (from & MASK));
+                IntBuffer slice = src.duplicate();
+                slice.limit(slice.position() + k);
+                chunks[from >>> CHUNK_SHIFT].asIntBuffer().position(from & MASK).put(slice);
+                src.position(src.position() + k);
+                from += k;
+                n -= k;
+            }
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return chunks.length > 0 && chunks[0].isReadOnly();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+
+
+/**
+ * This class is a lookup table of the natural logarithms of the small counts, for the naive Bayes classifiers.
+ *
+ * Scoring an e-mail takes the log of a count for every n-gram and class. Most counts are small, so their logs come
+ * from a table of the first 2^LOG_SIZE counts, 512 KB shared by all the classifiers, instead of from Math.log().
+ * The table holds the values of Math.log(), so the scores are the same either way. Larger counts fall back to
+ * Math.log().
+ */
+public class LogTable {
+
+    static final int LOG_SIZE = 16;
+    private static final double[] LOGS = new double[1 << LOG_SIZE];
+
+    static {
+        for (int count = 0; count < LOGS.length; count++)
+            LOGS[count] = Math.log(count);
+    }
+
+    /**
+     * @param count A count
+     * @return Math.log(count)
+     */
+    public static double log(int count) {
+        if (count >>> LOG_SIZE == 0) // also false for the negative counts, whose log is NaN
+            return LOGS[count];
+        return Math.log(count);
+    }
+
+    /**
+     * @param count A count
+     * @return Math.log(count)
+     */
+    public static double log(long count) {
+        if (count >>> LOG_SIZE == 0)
+            return LOGS[(int) count];
+        return Math.log(count);
+    }
+}
@@ -8,16 +8,29 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
  * This class creates a stream of e-mails from files. Index files link to
  * e-mails or other index files.
+ *
+ * The e-mails can optionally be parsed by a pool of worker threads. The index
+ * is then read on a separate thread, the parsing is spread over the workers and
+ * the results are handed out in index order, so the stream is identical to the
+ * sequential one. A caller that may stop before the end of the stream should
+ * pass the iterator to close() when it stops, which stops the threads.
+ *
+ * A stream can be split into shards, e.g. to train on the shards in parallel
+ * and merge the models (see ShardedTraining).
  */
 public class MailStream implements Iterable<LabeledText> {
 
     private String indexPath;
     private EmlParser parser;
+    private int nbOfThreads;
+    private int shard = 0;
+    private int nbOfShards = 1;
 
     /**
      * Initialize the mail stream with the path to the root index and an e-mail parser
@@ -32,8 +45,75 @@ public class MailStream implements Iterable<LabeledText> {
      * @param parser The parser to parse each e-mail
      */
     public MailStream(String indexPath, EmlParser parser)  {
+        this(indexPath, parser, 1);
+    }
+
+    /**
+     * Initialize the mail stream with the path to the root index, an e-mail parser
+     * and the number of threads that parse e-mails.
+     *
+     * @param indexPath path to the root index.
+     * @param parser The parser to parse each e-mail. It must be safe to call from several threads.
+     * @param nbOfThreads The number of parser threads. With 1 (or less), the e-mails are parsed on the caller thread.
+     */
+    public MailStream(String indexPath, EmlParser parser, int nbOfThreads)  {
         this.indexPath = indexPath;
         this.parser = parser;
+        this.nbOfThreads = nbOfThreads;
+    }
+
+
+    /**
+     * Opens the mail stream of an index, or of a compiled corpus when the path points to one
+     *
+     * @param indexPath path to the root index or to a compiled corpus (see CompiledMailStream)
+     * @param stopWordsPath Path to the file with stop words, only used for an index
+     * @param n The maximum n for n-grams, only used for an index
+     * @param nbOfThreads The number of parser threads, only used for an index
+     * @param hashNgrams If true, the e-mails of an index are parsed into n-gram fingerprints only
+     * @return The mail stream
+     * @throws IOException
+     */
+    public static MailStream open(String indexPath, String stopWordsPath, int n, int nbOfThreads, boolean hashNgrams) throws IOException {
+        if (CompiledMailStream.isCompiled(indexPath)) {
+            CompiledMailStream stream = new CompiledMailStream(indexPath);
+            if (stream.getMaxN() != n)
+                System.err.println("Warning: " + indexPath + " was compiled with maxN=" + stream.getMaxN() + ", not " + n);
+            return stream;
+        }
+        EmlParser parser = new EmlParser(stopWordsPath, n, EmlParser.DEFAULT_STEM_CACHE_SIZE, hashNgrams);
+        return new MailStream(indexPath, parser, nbOfThreads);
+    }
+
+
+    /**
+     * The shard of this stream: every nbOfShards'th e-mail, starting from e-mail number shard (counting from 0).
+     * The e-mails of the other shards are skipped before they are parsed.
+     *
+     * @param shard The number of the shard, in [0, nbOfShards-1]
+     * @param nbOfShards The number of shards
+     * @return A new mail stream over the shard
+     * @throws IOException
+     */
+    public MailStream shard(int shard, int nbOfShards) throws IOException {
+        MailStream stream = new MailStream(indexPath, parser, nbOfThreads);
+        stream.setShard(shard, nbOfShards);
+        return stream;
+    }
+
+    protected void setShard(int shard, int nbOfShards) {
+        if (nbOfShards < 1 || shard < 0 || shard >= nbOfShards)
+            throw new IllegalArgumentException("Shard " + shard + " of " + nbOfShards + " does not exist");
+        this.shard = shard;
+        this.nbOfShards = nbOfShards;
+    }
+
+    /**
+     * @param number The number of an e-mail in the whole stream, counting from 0
+     * @return true if the e-mail belongs to the shard of this stream
+     */
+    protected boolean inShard(long number) {
+        return number % nbOfShards == shard;
     }
 
 
@@ -44,85 +124,264 @@ public class MailStream implements Iterable<LabeledText> {
      */
     @Override
     public Iterator<LabeledText> iterator() {
+        if (nbOfThreads > 1)
+            return new ParallelIterator();
+
         return new Iterator<LabeledText>() {
 
-            private Queue<File> indexQueue = null;
-            private BufferedReader reader = null;
+            private IndexIterator index = new IndexIterator();
             private LabeledText nextExample = null;
-            private File currentFolder = null;
 
             @Override
             public boolean hasNext() {
-
-                // initialize
-                if (indexQueue == null) {
-                    indexQueue = new LinkedList<>();
+                while (index.hasNext()) {
+                    IndexEntry entry = index.next();
                     try {
-                        currentFolder = new File(indexPath).getParentFile();
-                        reader = new BufferedReader(new FileReader(indexPath));
-                    }catch (Exception e) {
-                        System.err.println(e.getMessage());
-                        return false; // Couldn't open index path
+                        nextExample = entry.parse(parser);
+                        return true; // a new e-mail is ready
+                    } catch (Exception e) {
+                        // If a line was not able to be parsed, write out an error message, and move on to the next line
+                        System.err.println("Couldn't parse line " + entry.line);
                     }
                 }
+                return false;
+            }
+
+            @Override
+            public LabeledText next() {
+                return nextExample;
+            }
+
+            @Override
+            public void remove() {
+                //do nothing
+            }
+        };
+    }
+
+
+    /**
+     * Stops an iterator of a stream before its end: the threads of a parallel stream are stopped and its pending
+     * e-mails are dropped, and the file of a compiled corpus is closed. This does nothing for the other iterators,
+     * those that are not AutoCloseable, and for an iterator at the end of its stream.
+     *
+     * @param iterator An iterator of a mail stream
+     */
+    public static void close(Iterator<LabeledText> iterator) {
+        if (!(iterator instanceof AutoCloseable))
+            return;
+        try {
+            ((AutoCloseable) iterator).close();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("couldn't close the mail stream", e);
+        }
+    }
+
+
+    /**
+     * An e-mail line of an index: the label and the path of the e-mail file
+     */
+    private static class IndexEntry {
+
+        final String line;
+        final int label;
+        final String emlPath;
+
+        IndexEntry(String line, int label, String emlPath) {
+            this.line = line;
+            this.label = label;
+            this.emlPath = emlPath;
+        }
+
+        LabeledText parse(EmlParser parser) {
+            return new LabeledText(parser.parse(emlPath), label);
+        }
+    }
+
+
+    /**
+     * Iterates over the e-mail lines of the root index and its sub indexes, without parsing the e-mails.
+     * Like the stream iterator, hasNext() moves on to the next e-mail line.
+     */
+    private class IndexIterator implements Iterator<IndexEntry> {
+
+        private Queue<File> indexQueue = null;
+        private BufferedReader reader = null;
+        private IndexEntry nextEntry = null;
+        private File currentFolder = null;
+        private long nbOfEntries = 0; // the number of e-mail lines read so far, in all shards
+
+        @Override
+        public boolean hasNext() {
+
+            // initialize
+            if (indexQueue == null) {
+                indexQueue = new LinkedList<>();
+                try {
+                    currentFolder = new File(indexPath).getParentFile();
+                    reader = new BufferedReader(new FileReader(indexPath));
+                }catch (Exception e) {
+                    System.err.println(e.getMessage());
+                    return false; // Couldn't open index path
+                }
+            }
+
 
+            while (true) {
+                // read the next line
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (Exception e) {
+                    System.err.println("couldn't read line");
+                    return false; // couldn't read line
+                }
 
-                while (true) {
-                    // read the next line
-                    String line;
+                // If the end of the current index file is reached, move on to the next buffered index file
+                if (line == null)
                     try {
-                        line = reader.readLine();
+                        reader.close();
+                        File nextIndex = indexQueue.remove();
+                        reader = new BufferedReader(new FileReader(nextIndex));
+                        currentFolder = nextIndex.getParentFile();
                     } catch (Exception e) {
-                        System.err.println("couldn't read line");
-                        return false; // couldn't read line
+                        return false; // nothing left in the indexQueue
                     }
 
-                    // If the end of the current index file is reached, move on to the next buffered index file
-                    if (line == null)
-                        try {
-                            reader.close();
-                            File nextIndex = indexQueue.remove();
-                            reader = new BufferedReader(new FileReader(nextIndex));
-                            currentFolder = nextIndex.getParentFile();
-                        } catch (Exception e) {
-                            return false; // nothing left in the indexQueue
+                // parse the line
+                else {
+                    try {
+                        String[] splitLine = line.split("\\s");
+
+                        //if the line contains a sub index, add this to the buffered index files
+                        if (splitLine.length==1) {
+                            indexQueue.add(new File(currentFolder, splitLine[0]));
                         }
 
-                    // parse the line
-                    else {
-                        try {
-                            String[] splitLine = line.split("\\s");
+                        // If the line contains an e-mail of the shard, put it as the next entry
+                        else if (inShard(nbOfEntries++)) {
+                            int cl = splitLine[0].equals("spam")?1:0;
+                            String emlPath = new File(currentFolder, splitLine[1]).getPath();
+                            nextEntry = new IndexEntry(line, cl, emlPath);
+                            return true; // a new e-mail line is ready
+                        }
+                    } catch (Exception e) {
+                        // If a line was not able to be parsed, write out an error message, and move on to the next line
+                        System.err.println("Couldn't parse line " + line);
+                    }
 
-                            //if the line contains a sub index, add this to the buffered index files
-                            if (splitLine.length==1) {
-                                indexQueue.add(new File(currentFolder, splitLine[0]));
-                            }
+                }
+            }
+        }
 
-                            // If the line contains an e-mail, parse it and put it as the next example
-                            else {
-                                int cl = splitLine[0].equals("spam")?1:0;
-                                String emlPath = new File(currentFolder, splitLine[1]).getPath();
-                                nextExample = new LabeledText(parser.parse(emlPath), cl);
-                                return true; // a new e-mail is ready
+        @Override
+        public IndexEntry next() {
+            return nextEntry;
+        }
+    }
+
+
+    /**
+     * The parallel stream. One thread reads the index and submits each e-mail to the parser pool. The pending
+     * results are queued in index order, so taking them from the head of the queue restores the sequential order.
+     * The queue is bounded, which keeps the readers from running too far ahead of the consumer. close() interrupts
+     * the thread that reads the index, which may be waiting on the full queue, and stops the parser pool.
+     */
+    private class ParallelIterator implements Iterator<LabeledText>, AutoCloseable {
+
+        private final Future<LabeledText> END_OF_STREAM = CompletableFuture.completedFuture(null);
+
+        private final ExecutorService workers;
+        private final BlockingQueue<Future<LabeledText>> pending;
+        private final Thread indexReader;
+        private LabeledText nextExample = null;
+        private boolean done = false;
+
+        ParallelIterator() {
+            workers = Executors.newFixedThreadPool(nbOfThreads, daemonThreads("MailStream-parser"));
+            pending = new ArrayBlockingQueue<>(16 * nbOfThreads);
+
+            indexReader = daemonThreads("MailStream-index").newThread(() -> {
+                try {
+                    IndexIterator index = new IndexIterator();
+                    while (index.hasNext()) {
+                        IndexEntry entry = index.next();
+                        pending.put(workers.submit(() -> {
+                            try {
+                                return entry.parse(parser);
+                            } catch (Exception e) {
+                                System.err.println("Couldn't parse line " + entry.line);
+                                return null;
                             }
-                        } catch (Exception e) {
-                            // If a line was not able to be parsed, write out an error message, and move on to the next line
-                            System.err.println("Couldn't parse line " + line);
-                        }
+                        }));
+                    }
+                    pending.put(END_OF_STREAM);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RejectedExecutionException e) {
+                    // the iterator was closed
+                }
+            });
+            indexReader.start();
+        }
 
+        @Override
+        public boolean hasNext() {
+            while (!done) {
+                try {
+                    Future<LabeledText> result = pending.take();
+                    if (result == END_OF_STREAM) {
+                        done = true;
+                        workers.shutdown();
+                        break;
                     }
+                    nextExample = result.get();
+                    if (nextExample != null)
+                        return true; // a new e-mail is ready
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    done = true;
+                    workers.shutdownNow();
+                } catch (ExecutionException e) {
+                    System.err.println(e.getCause());
                 }
             }
+            return false;
+        }
 
-            @Override
-            public LabeledText next() {
-                return nextExample;
-            }
+        @Override
+        public LabeledText next() {
+            return nextExample;
+        }
 
-            @Override
-            public void remove() {
-                //do nothing
-            }
+        @Override
+        public void remove() {
+            //do nothing
+        }
+
+        /**
+         * Stops reading the index, cancels the pending e-mails and stops the parser pool
+         */
+        @Override
+        public void close() {
+            done = true;
+            indexReader.interrupt();
+            workers.shutdownNow();
+            for (Future<LabeledText> result = pending.poll(); result != null; result = pending.poll())
+                result.cancel(true);
+        }
+    }
+
+    /**
+     * Creates daemon threads, so that an abandoned stream does not keep the JVM alive.
+     */
+    static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
         };
     }
 
@@ -0,0 +1,370 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+
+/**
+ * This class reads and writes model snapshots: binary files with the parameters of a trained classifier, see
+ * OnlineTextClassifier.save() and OnlineTextClassifier.load().
+ *
+ * The file is written and read through a FileChannel with a direct buffer, the arrays in bulk. A CRC32 of all the
+ * bytes is computed while they stream through the buffer and is checked when the snapshot is read, so a truncated
+ * or damaged file is rejected instead of giving a wrong model.
+ *
+ * File format (little endian):
+ *   header: magic (int), version (int), class name (string), threshold (double), nbExamplesProcessed (int)
+ *   model: the parameters, as written by the classifier
+ *   trailer: CRC32 of all the preceding bytes (int)
+ * A string is its UTF-8 length (int) and bytes, an array its length (int), zeros up to the next multiple of 8
+ * bytes in the file, and its elements. The aligned arrays can be used in place from a memory-mapped file, see
+ * OnlineTextClassifier.map(). Version 1 did not align the arrays, version 2 did not store the width of the counters of
+ * NaiveBayesCountMinSketch, version 3 did not store its update mode, version 4 did not store the aggregation of
+ * PerceptronCountMinSketch.
+ */
+public class ModelSnapshot {
+
+    static final int MAGIC = 0x4D414442; // "BDAM"
+    static final int VERSION = 5;
+    private static final int ALIGNMENT = 8; // the arrays start at a multiple of 8 bytes, so they can be mapped
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Writes a snapshot. close() writes the checksum, a snapshot that is not closed is incomplete.
+     */
+    public static class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long nbOfBytesWritten = 0; // the bytes written to the channel so far, before the buffer
+        private final CRC32 crc = new CRC32();
+
+        public Writer(String path) throws IOException {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        public void writeInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        public void writeLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        public void writeDouble(double value) throws IOException {
+            ensure(8);
+            buffer.putDouble(value);
+        }
+
+        public void writeBoolean(boolean value) throws IOException {
+            ensure(1);
+            buffer.put((byte) (value ? 1 : 0));
+        }
+
+        public void writeString(String value) throws IOException {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(utf8.length);
+            for (byte b : utf8) {
+                ensure(1);
+                buffer.put(b);
+            }
+        }
+
+        public void writeInts(IntStorage values) throws IOException {
+            writeInt(values.length());
+            align();
+            for (int i = 0; i < values.length(); ) {
+                ensure(4);
+                int n = Math.min(values.length() - i, buffer.remaining() / 4);
+                values.get(i, buffer.asIntBuffer(), n);
+                buffer.position(buffer.position() + 4 * n);
+                i += n;
+            }
+        }
+
+        public void writeDoubles(DoubleStorage values) throws IOException {
+            writeInt(values.length());
+            align();
+            for (int i = 0; i < values.length(); ) {
+                ensure(8);
+                int n = Math.min(values.length() - i, buffer.remaining() / 8);
+                values.get(i, buffer.asDoubleBuffer(), n);
+                buffer.position(buffer.position() + 8 * n);
+                i += n;
+            }
+        }
+
+        /**
+         * Pads with zeros up to the next multiple of ALIGNMENT in the file
+         */
+        private void align() throws IOException {
+            while ((nbOfBytesWritten + buffer.position()) % ALIGNMENT != 0) {
+                ensure(1);
+                buffer.put((byte) 0);
+            }
+        }
+
+        private void ensure(int size) throws IOException {
+            if (buffer.remaining() < size)
+                flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining())
+                nbOfBytesWritten += channel.write(buffer);
+            buffer.clear();
+        }
+
+        /**
+         * Writes the checksum and closes the file
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                buffer.putInt((int) crc.getValue());
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot. close() checks the checksum, the values read before are only valid if it succeeds.
+     *
+     * In mapped mode, the arrays are not read but mapped read-only, see IntStorage.mapped(). Their bytes are then
+     * not read at all, so the checksum is not checked either; only the layout of the file is.
+     */
+    public static class Reader implements Closeable {
+
+        private final String path;
+        private final boolean mapped;
+        private final FileChannel channel;
+        private final long size;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long bufferStart = 0; // the offset in the file of the start of the buffer
+        private int unchecked = 0; // the consumed bytes of the buffer from this position on are not in the CRC yet
+        private final CRC32 crc = new CRC32();
+
+        public Reader(String path) throws IOException {
+            this(path, false);
+        }
+
+        /**
+         * @param path The path of the snapshot
+         * @param mapped If true, the arrays are mapped instead of read
+         */
+        public Reader(String path, boolean mapped) throws IOException {
+            this.path = path;
+            this.mapped = mapped;
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            size = channel.size();
+            buffer.limit(0);
+        }
+
+        public int readInt() throws IOException {
+            require(4);
+            return buffer.getInt();
+        }
+
+        public long readLong() throws IOException {
+            require(8);
+            return buffer.getLong();
+        }
+
+        public double readDouble() throws IOException {
+            require(8);
+            return buffer.getDouble();
+        }
+
+        public boolean readBoolean() throws IOException {
+            require(1);
+            return buffer.get() != 0;
+        }
+
+        public String readString() throws IOException {
+            byte[] utf8 = new byte[readLength(1)];
+            for (int i = 0; i < utf8.length; i++) {
+                require(1);
+                utf8[i] = buffer.get();
+            }
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @param length The expected length of the array
+         * @return The array, on the heap or mapped
+         */
+        public IntStorage readInts(int length) throws IOException {
+            checkLength(length, readLength(4));
+            skipPadding();
+            if (mapped) {
+                IntStorage values = IntStorage.mapped(channel, position(), length);
+                skip(4L * length);
+                return values;
+            }
+            IntStorage values = IntStorage.onHeap(length);
+            for (int i = 0; i < length; ) {
+                require(4);
+                int n = Math.min(length - i, buffer.remaining() / 4);
+                values.set(i, buffer.asIntBuffer(), n);
+                buffer.position(buffer.position() + 4 * n);
+                i += n;
+            }
+            return values;
+        }
+
+        /**
+         * @param length The expected length of the array
+         * @return The array, on the heap or mapped
+         */
+        public DoubleStorage readDoubles(int length) throws IOException {
+            checkLength(length, readLength(8));
+            skipPadding();
+            if (mapped) {
+                DoubleStorage values = DoubleStorage.mapped(channel, position(), length);
+                skip(8L * length);
+                return values;
+            }
+            DoubleStorage values = DoubleStorage.onHeap(length);
+            for (int i = 0; i < length; ) {
+                require(8);
+                int n = Math.min(length - i, buffer.remaining() / 8);
+                values.set(i, buffer.asDoubleBuffer(), n);
+                buffer.position(buffer.position() + 8 * n);
+                i += n;
+            }
+            return values;
+        }
+
+        /**
+         * @return The offset in the file of the next byte to read
+         */
+        private long position() {
+            return bufferStart + buffer.position();
+        }
+
+        /**
+         * Reads the length of an array or a string, and checks that the file is long enough to hold it
+         */
+        private int readLength(int elementSize) throws IOException {
+            int length = readInt();
+            if (length < 0 || (long) length * elementSize > size - position())
+                throw new IOException(path + " is damaged: an array of " + length + " elements does not fit in the file");
+            return length;
+        }
+
+        private void checkLength(int expected, int length) throws IOException {
+            if (length != expected)
+                throw new IOException(path + " does not fit the model: expected an array of " + expected
+                        + " elements, got " + length);
+        }
+
+        private void skipPadding() throws IOException {
+            while (position() % ALIGNMENT != 0) {
+                require(1);
+                buffer.get();
+            }
+        }
+
+        /**
+         * Skips bytes without reading them (in mapped mode only, they are not added to the CRC)
+         */
+        private void skip(long n) throws IOException {
+            if (n <= buffer.remaining()) {
+                buffer.position(buffer.position() + (int) n);
+            } else {
+                bufferStart = position() + n;
+                buffer.clear().limit(0);
+                channel.position(bufferStart);
+            }
+            unchecked = buffer.position();
+        }
+
+        /**
+         * Makes sure that the next size bytes are in the buffer, and adds the consumed bytes to the CRC
+         */
+        private void require(int size) throws IOException {
+            if (buffer.remaining() >= size)
+                return;
+            updateCrc();
+            bufferStart += buffer.position();
+            buffer.compact();
+            while (buffer.position() < size) {
+                if (channel.read(buffer) < 0)
+                    throw new IOException(path + " is truncated");
+            }
+            buffer.flip();
+            unchecked = 0;
+        }
+
+        private void updateCrc() {
+            ByteBuffer consumed = buffer.duplicate();
+            consumed.limit(buffer.position()).position(unchecked);
+            crc.update(consumed);
+            unchecked = buffer.position();
+        }
+
+        /**
+         * Checks the checksum (not in mapped mode) and closes the file. The mapped arrays stay valid.
+         *
+         * @throws IOException if the checksum does not match, or there are bytes after it
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                updateCrc();
+                int expected = (int) crc.getValue();
+                require(4);
+                int checksum = buffer.getInt();
+                if (!mapped && checksum != expected)
+                    throw new IOException(path + " is damaged: its checksum does not match");
+                if (position() != size)
+                    throw new IOException(path + " is damaged: there are bytes after the checksum");
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Loads (or with -map, maps) a model snapshot, and evaluates the model on a mail stream if one is given.
+     */
+    public static void main(String[] args) throws IOException {
+        boolean map = HelperFunctions.hasFlag(args, 0, "-map");
+        if (map)
+            args = Arrays.stream(args).filter(arg -> !arg.equals("-map")).toArray(String[]::new);
+        if (args.length != 1 && args.length < 4) {
+            System.err.println("Usage: java ModelSnapshot [-map] <modelPath> [<indexPath> <stopWordsPath> <maxN> [-parseThreads=<n>] [-hashNgrams]]");
+            throw new Error("Expected 1 or at least 4 arguments, got " + args.length + ".");
+        }
+        long start = System.nanoTime();
+        OnlineTextClassifier model = map ? OnlineTextClassifier.map(args[0]) : OnlineTextClassifier.load(args[0]);
+        System.out.println((map ? "Mapped " : "Loaded ") + model.getClass().getName() + " trained with "
+                + model.nbExamplesProcessed + " e-mails in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+        if (args.length >= 4) {
+            int nbOfParseThreads = HelperFunctions.getIntOption(args, 4, "-parseThreads", 1);
+            boolean hashNgrams = HelperFunctions.hasFlag(args, 4, "-hashNgrams");
+            MailStream stream = MailStream.open(args[1], args[2], Integer.parseInt(args[3]), nbOfParseThreads, hashNgrams);
+            ShardedTraining.evaluate(model, stream);
+        }
+    }
+}
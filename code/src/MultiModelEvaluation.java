@@ -0,0 +1,340 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * This class makes the learning curves of several classifiers on one mail stream.
+ *
+ * OnlineTextClassifier.makeLearningCurve() evaluates one model, so comparing five models parses the e-mails five
+ * times. Here the stream is parsed once: every batch of e-mails is read once and given to all the models, which test
+ * and train on it in parallel, one thread per model. The batches are the same as those of makeLearningCurve(), so
+ * every model writes the same files "out + . + modelName + . + scoreName" (and "out + . + modelName + .pred") as it
+ * would on its own.
+ *
+ * Usage:
+ *   java MultiModelEvaluation <indexPath> <stopWordsPath> <outPath> <reportingPeriod> <maxN> <model>... [options]
+ * Models:
+ *   nbfh:<logNbOfBuckets>:<threshold>
+ *   nbcms:<logNbOfBuckets>:<nbOfHashes>:<threshold>
+ *   pfh:<logNbOfBuckets>:<learningRate>
+ *   pcms:<logNbOfBuckets>:<nbOfHashes>:<learningRate>[:mean|median|truncated] (default: mean)
+ *   adpfh:<logNbOfBuckets>:<threshold>:<learningRate>
+ * Options:
+ *   -writeOutAllPredictions  Write all the predictions of every model
+ *   -binaryPredictions       Write the predictions in binary, see OutputSink
+ *   -roc                     Write the ROC and precision-recall curves and the metrics at every threshold
+ *   -window=<n>              Also monitor the metrics over the last n predictions and with exponential decay, see
+ *                            WindowedEvaluation (default: 0, off)
+ *   -halfLife=<n>            The half-life of the exponential decay, in number of predictions (default: the window)
+ *   -monitorPeriod=<n>       How often the monitored metrics are reported (default: the reporting period)
+ *   -parseThreads=<n>        The number of threads that parse the e-mails
+ *   -hashNgrams              Parse the e-mails into fingerprints only
+ *   -modelThreads=<n>        The number of threads that run the models (default: one per model)
+ *   -seed=<n>                The seed of the hash functions of all the models
+ *   -offHeap                 Store the parameters of the models outside the Java heap
+ *   -logTable                Look up the logs of the small counts of the naive Bayes classifiers in a table
+ */
+public class MultiModelEvaluation {
+
+    /**
+     * The learning curve of one model: its output files, and the counts of the current batch
+     */
+    private static class Curve {
+
+        final String name;
+        final OnlineTextClassifier model;
+        final EvaluationMetric[] evals;
+        final OutputSink[] evalWriters;
+        OutputSink predictionWriter; // or null
+        ScoreHistogram scores; // or null
+        WindowedEvaluation monitor; // or null
+        final DecimalFormat df = new DecimalFormat("0.000");
+
+        Curve(String name, OnlineTextClassifier model, EvaluationMetric[] evals) {
+            this.name = name;
+            this.model = model;
+            this.evals = evals;
+            evalWriters = new OutputSink[evals.length];
+        }
+
+        void open(String out, boolean writeOutAllPredictions, boolean binaryPredictions, boolean roc, int windowSize,
+                  int halfLife, int monitorPeriod) throws FileNotFoundException {
+            for (int e = 0; e < evals.length; e++)
+                evalWriters[e] = new OutputSink(out + "." + evals[e].name());
+            if (writeOutAllPredictions)
+                predictionWriter = OutputSink.predictions(out + (binaryPredictions ? ".pred.bin" : ".pred"), binaryPredictions);
+            if (roc)
+                scores = new ScoreHistogram();
+            if (windowSize > 0)
+                monitor = new WindowedEvaluation(evals, windowSize, halfLife, monitorPeriod, out);
+        }
+
+        /**
+         * Tests the model on a batch, writes the scores, and then trains it on the batch, like one iteration of
+         * OnlineTextClassifier.makeLearningCurve()
+         *
+         * @return The line to print
+         */
+        String process(List<LabeledText> batch) {
+            ConfusionMatrix confusion = new ConfusionMatrix();
+
+            for (LabeledText example : batch) {
+                double prediction = model.makePrediction(example.text);
+                int predictedClass = model.classify(prediction);
+                confusion.add(example.label, predictedClass);
+                if (predictionWriter != null)
+                    predictionWriter.writePrediction(example.label, predictedClass, prediction);
+                if (scores != null)
+                    scores.add(example.label, prediction);
+                if (monitor != null)
+                    monitor.add(example.label, predictedClass);
+            }
+
+            String outline = name + " trained with: " + model.nbExamplesProcessed;
+            for (int e = 0; e < evals.length; e++) {
+                double score = confusion.evaluate(evals[e]);
+                evalWriters[e].print(model.nbExamplesProcessed);
+                evalWriters[e].print('\t');
+                evalWriters[e].print(score);
+                evalWriters[e].println();
+                outline += "\t" + evals[e].name() + ": " + df.format(score);
+            }
+
+            model.updateBatch(batch);
+            return outline;
+        }
+
+        /**
+         * Closes all the files, even if one of them fails, and then throws the first failure
+         */
+        void close() {
+            RuntimeException error = null;
+            try {
+                if (monitor != null)
+                    monitor.close();
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            for (OutputSink writer : evalWriters) {
+                try {
+                    if (writer != null)
+                        writer.close();
+                } catch (RuntimeException e) {
+                    if (error == null)
+                        error = e;
+                }
+            }
+            try {
+                if (predictionWriter != null)
+                    predictionWriter.close();
+            } catch (RuntimeException e) {
+                if (error == null)
+                    error = e;
+            }
+            if (error != null)
+                throw error;
+        }
+    }
+
+    /**
+     * Makes the learning curves of several models on one pass over a mail stream, see
+     * OnlineTextClassifier.makeLearningCurve(). The models must not share any state, they are trained in parallel.
+     *
+     * @param mailStream The incoming mail stream
+     * @param models The models
+     * @param names The names of the models, the scores of model m are written to out.names[m].scoreName
+     * @param evals The evaluation metrics
+     * @param out The stem of the output files
+     * @param reportingPeriod How often the models are evaluated, in number of examples
+     * @param writeOutAllPredictions When this is true, all the predictions are written to out.names[m].pred
+     * @param binaryPredictions When this is true, the predictions are written in binary to out.names[m].pred.bin
+     * @param roc When this is true, the ROC curves are written to out.names[m].roc etc., see ScoreHistogram
+     * @param windowSize If positive, the metrics are also monitored over a sliding window of this size and with
+     *                   exponential decay, in out.names[m].window.scoreName etc., see WindowedEvaluation
+     * @param halfLife The half-life of the exponential decay, in number of predictions
+     * @param monitorPeriod How often the monitored metrics are reported, in number of predictions
+     * @param nbOfThreads The number of threads that run the models
+     * @throws FileNotFoundException if an output file can not be created
+     */
+    public static void makeLearningCurves(MailStream mailStream, OnlineTextClassifier[] models, String[] names,
+                                          EvaluationMetric[] evals, String out, int reportingPeriod,
+                                          boolean writeOutAllPredictions, boolean binaryPredictions, boolean roc,
+                                          int windowSize, int halfLife, int monitorPeriod, int nbOfThreads)
+            throws FileNotFoundException {
+        List<Curve> curves = new ArrayList<>();
+        Iterator<LabeledText> iterator = null;
+        ExecutorService pool = Executors.newFixedThreadPool(nbOfThreads, MailStream.daemonThreads("MultiModelEvaluation"));
+        try {
+            for (int m = 0; m < models.length; m++) {
+                curves.add(new Curve(names[m], models[m], evals));
+                curves.get(m).open(out + "." + names[m], writeOutAllPredictions, binaryPredictions, roc, windowSize,
+                        halfLife, monitorPeriod);
+            }
+
+            System.out.println("Start training/testing " + models.length + " models");
+
+            int nbToTest = 10;
+            iterator = mailStream.iterator();
+            boolean hasNext = iterator.hasNext(); // hasNext() moves on to the next e-mail, call it once per e-mail
+            while (hasNext) {
+                List<LabeledText> buffer = new ArrayList<>(nbToTest);
+                while (hasNext && buffer.size() < nbToTest) {
+                    LabeledText example = iterator.next();
+                    example.text.getFingerprints(); // hash the n-grams once, not once per model
+                    buffer.add(example);
+                    hasNext = iterator.hasNext();
+                }
+
+                List<Callable<String>> tasks = new ArrayList<>();
+                for (Curve curve : curves)
+                    tasks.add(() -> curve.process(buffer));
+                for (Future<String> outline : pool.invokeAll(tasks))
+                    System.out.println(outline.get());
+
+                nbToTest = Math.min(reportingPeriod, nbToTest * 2);
+            }
+
+            for (int m = 0; m < models.length; m++) {
+                if (curves.get(m).scores != null) {
+                    System.out.print(names[m] + " ");
+                    curves.get(m).scores.writeCurves(out + "." + names[m], evals);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while evaluating the models", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("evaluating a model failed", e.getCause());
+        } finally {
+            pool.shutdown();
+            RuntimeException error = null;
+            try {
+                if (iterator != null)
+                    MailStream.close(iterator);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            for (Curve curve : curves) {
+                try {
+                    curve.close();
+                } catch (RuntimeException e) {
+                    if (error == null)
+                        error = e;
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+    }
+
+    /**
+     * Creates a model from its description on the command line, see the usage
+     */
+    static OnlineTextClassifier newModel(String description, int seed, boolean offHeap, boolean logTable) {
+        String[] fields = description.split(":");
+        switch (fields[0]) {
+            case "nbfh":
+                if (fields.length == 3) {
+                    NaiveBayesFeatureHashing nb = new NaiveBayesFeatureHashing(Integer.parseInt(fields[1]),
+                            Double.parseDouble(fields[2]), false, seed, offHeap);
+                    nb.setLogTable(logTable);
+                    return nb;
+                }
+                break;
+            case "nbcms":
+                if (fields.length == 4) {
+                    NaiveBayesCountMinSketch nb = new NaiveBayesCountMinSketch(Integer.parseInt(fields[2]),
+                            Integer.parseInt(fields[1]), Double.parseDouble(fields[3]), false, seed, offHeap);
+                    nb.setLogTable(logTable);
+                    return nb;
+                }
+                break;
+            case "pfh":
+                if (fields.length == 3)
+                    return new PerceptronFeatureHashing(Integer.parseInt(fields[1]), Double.parseDouble(fields[2]), 0,
+                            1, seed, offHeap);
+                break;
+            case "pcms":
+                if (fields.length == 4 || fields.length == 5) {
+                    PerceptronCountMinSketch perceptron = new PerceptronCountMinSketch(Integer.parseInt(fields[2]),
+                            Integer.parseInt(fields[1]), Double.parseDouble(fields[3]), 0, seed, offHeap);
+                    if (fields.length == 5)
+                        perceptron.setAggregation(PerceptronCountMinSketch.aggregation(fields[4]));
+                    return perceptron;
+                }
+                break;
+            case "adpfh":
+                if (fields.length == 4)
+                    return new AdjustedPerceptronFeatureHashing(Integer.parseInt(fields[1]),
+                            Double.parseDouble(fields[3]), Double.parseDouble(fields[2]), seed, offHeap);
+                break;
+        }
+        throw new IllegalArgumentException("Unknown model " + description);
+    }
+
+    /**
+     * This runs the evaluation of several models.
+     */
+    public static void main(String[] args) throws IOException {
+        int a = 5;
+        while (a < args.length && !args[a].startsWith("-"))
+            a++;
+        if (a < 6) {
+            System.err.println("Usage: java MultiModelEvaluation <indexPath> <stopWordsPath> <outPath> <reportingPeriod> <maxN> <model>... [-writeOutAllPredictions] [-binaryPredictions] [-roc] [-window=<n> [-halfLife=<n>] [-monitorPeriod=<n>]] [-parseThreads=<n>] [-hashNgrams] [-modelThreads=<n>] [-seed=<n>] [-offHeap] [-logTable]");
+            System.err.println("Models: nbfh:<logNbOfBuckets>:<threshold> nbcms:<logNbOfBuckets>:<nbOfHashes>:<threshold> pfh:<logNbOfBuckets>:<learningRate> pcms:<logNbOfBuckets>:<nbOfHashes>:<learningRate>[:mean|median|truncated] adpfh:<logNbOfBuckets>:<threshold>:<learningRate>");
+            throw new Error("Expected at least 6 arguments, got " + args.length + ".");
+        }
+        String indexPath = args[0];
+        String stopWordsPath = args[1];
+        String out = args[2];
+        int reportingPeriod = Integer.parseInt(args[3]);
+        int n = Integer.parseInt(args[4]);
+        int nbOfModels = a - 5;
+        boolean writeOutAllPredictions = HelperFunctions.hasFlag(args, a, "-writeOutAllPredictions");
+        boolean binaryPredictions = HelperFunctions.hasFlag(args, a, "-binaryPredictions");
+        boolean roc = HelperFunctions.hasFlag(args, a, "-roc");
+        int windowSize = HelperFunctions.getIntOption(args, a, "-window", 0);
+        int halfLife = HelperFunctions.getIntOption(args, a, "-halfLife", windowSize);
+        int monitorPeriod = HelperFunctions.getIntOption(args, a, "-monitorPeriod", reportingPeriod);
+        int nbOfParseThreads = HelperFunctions.getIntOption(args, a, "-parseThreads", 1);
+        boolean hashNgrams = HelperFunctions.hasFlag(args, a, "-hashNgrams");
+        int nbOfModelThreads = HelperFunctions.getIntOption(args, a, "-modelThreads", nbOfModels);
+        int seed = HelperFunctions.getIntOption(args, a, "-seed", OnlineTextClassifier.DEFAULT_SEED);
+        boolean offHeap = HelperFunctions.hasFlag(args, a, "-offHeap");
+        boolean logTable = HelperFunctions.hasFlag(args, a, "-logTable");
+
+        OnlineTextClassifier[] models = new OnlineTextClassifier[nbOfModels];
+        String[] names = new String[nbOfModels];
+        Set<String> distinctNames = new HashSet<>();
+        for (int m = 0; m < nbOfModels; m++) {
+            models[m] = newModel(args[5 + m], seed, offHeap, logTable);
+            names[m] = args[5 + m].split(":")[0];
+            if (!distinctNames.add(names[m]))
+                throw new IllegalArgumentException("The output files of the two " + names[m] + " models would clash");
+        }
+
+        // initialize e-mail stream (an index or a compiled corpus)
+        MailStream stream = MailStream.open(indexPath, stopWordsPath, n, nbOfParseThreads, hashNgrams);
+
+        EvaluationMetric[] evaluationMetrics = {new Accuracy(), new Recall(), new Precision(), new F1Score(),
+                new BalancedAccuracy()};
+        long start = System.nanoTime();
+        makeLearningCurves(stream, models, names, evaluationMetrics, out, reportingPeriod, writeOutAllPredictions,
+                binaryPredictions, roc, windowSize, halfLife, monitorPeriod, nbOfModelThreads);
+        System.out.println("Evaluated " + nbOfModels + " models in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
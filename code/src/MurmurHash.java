@@ -78,15 +78,130 @@ public final class MurmurHash {
     }
 
     /**
-     * Generates 32 bit hash from a string.
+     * Generates 32 bit hash from a string, encoded in UTF-8.
      *
      * @param text string to hash
      * @param seed initial seed value
      * @return 32 bit hash of the given string
      */
     public static int hash32(final String text, int seed) {
-        final byte[] bytes = text.getBytes();
-        return hash32(bytes, bytes.length, seed);
+        return hash32(null, text, 0, text.length(), seed);
+    }
+
+    /**
+     * Generates 32 bit hash from a character sequence, encoded in UTF-8.
+     *
+     * @param text character sequence to hash
+     * @param seed initial seed value
+     * @return 32 bit hash of the given character sequence
+     */
+    public static int hash32(final CharSequence text, int seed) {
+        return hash32(null, text, 0, text.length(), seed);
+    }
+
+    /**
+     * Generates 32 bit hash from the characters start..end-1 of a
+     * character sequence, encoded in UTF-8.
+     *
+     * @param text character sequence to hash
+     * @param start index of the first character to hash
+     * @param end index after the last character to hash
+     * @param seed initial seed value
+     * @return 32 bit hash of the given characters
+     */
+    public static int hash32(final CharSequence text, int start, int end, int seed) {
+        return hash32(null, text, start, end, seed);
+    }
+
+    /**
+     * Generates 32 bit hash from a slice of a char array, encoded in UTF-8.
+     *
+     * @param chars char array with the characters to hash
+     * @param offset index of the first character to hash
+     * @param length number of characters to hash
+     * @param seed initial seed value
+     * @return 32 bit hash of the given characters
+     */
+    public static int hash32(final char[] chars, int offset, int length, int seed) {
+        return hash32(chars, null, offset, offset + length, seed);
+    }
+
+    /**
+     * Generates 32 bit hash from the UTF-8 encoding of chars[start..end-1]
+     * (or text, if chars is null), without materializing the bytes. The
+     * hash equals hash32(bytes, bytes.length, seed) for the bytes that
+     * String.getBytes(StandardCharsets.UTF_8) gives; like that method,
+     * an unpaired surrogate is encoded as '?'.
+     */
+    private static int hash32(final char[] chars, final CharSequence text, int start, int end, int seed) {
+        final int m = 0x5bd1e995;
+        final int r = 24;
+
+        boolean ascii = isAscii(chars, text, start, end);
+        int length = ascii ? end - start : utf8Length(chars, text, start, end);
+        int h = seed^length;
+        int k = 0;
+        int shift = 0;
+
+        int i = start;
+        if (ascii) {
+            // only ASCII characters: one byte per character
+            for (; i+4<=end; i+=4) {
+                if (chars != null)
+                    k = chars[i] | (chars[i+1]<<8) | (chars[i+2]<<16) | (chars[i+3]<<24);
+                else
+                    k = text.charAt(i) | (text.charAt(i+1)<<8) | (text.charAt(i+2)<<16) | (text.charAt(i+3)<<24);
+                k *= m;
+                k ^= k >>> r;
+                k *= m;
+                h *= m;
+                h ^= k;
+            }
+            k = 0;
+            for (; i<end; i++, shift += 8)
+                k |= (chars != null ? chars[i] : text.charAt(i)) << shift;
+        }
+
+        for (; i<end; i++) {
+            int c = chars != null ? chars[i] : text.charAt(i);
+            int bytes;  // the UTF-8 bytes of the character, first byte lowest
+            int nbOfBytes;
+            if (c < 0x80) {
+                bytes = c;
+                nbOfBytes = 1;
+            } else {
+                int codePoint = codePoint(chars, text, i, end, c);
+                if (codePoint > 0xffff)
+                    i++;
+                bytes = utf8Bytes(codePoint);
+                nbOfBytes = utf8Length(codePoint);
+            }
+
+            for (int b=0; b<nbOfBytes; b++, bytes >>>= 8) {
+                k |= (bytes&0xff) << shift;
+                shift += 8;
+                if (shift == 32) {
+                    k *= m;
+                    k ^= k >>> r;
+                    k *= m;
+                    h *= m;
+                    h ^= k;
+                    k = 0;
+                    shift = 0;
+                }
+            }
+        }
+
+        if (shift > 0) {
+            h ^= k;
+            h *= m;
+        }
+
+        h ^= h >>> 13;
+        h *= m;
+        h ^= h >>> 15;
+
+        return h;
     }
 
 
@@ -151,15 +266,205 @@ public final class MurmurHash {
     }
 
     /**
-     * Generates 64 bit hash from a string.
+     * Generates 64 bit hash from a string, encoded in UTF-8.
      *
      * @param text string to hash
      * @param seed initial seed value
      * @return 64 bit hash of the given string
      */
     public static long hash64(final String text, int seed) {
-        final byte[] bytes = text.getBytes();
-        return hash64(bytes, bytes.length, seed);
+        return hash64(null, text, 0, text.length(), seed);
+    }
+
+    /**
+     * Generates 64 bit hash from a character sequence, encoded in UTF-8.
+     *
+     * @param text character sequence to hash
+     * @param seed initial seed value
+     * @return 64 bit hash of the given character sequence
+     */
+    public static long hash64(final CharSequence text, int seed) {
+        return hash64(null, text, 0, text.length(), seed);
+    }
+
+    /**
+     * Generates 64 bit hash from the characters start..end-1 of a
+     * character sequence, encoded in UTF-8.
+     *
+     * @param text character sequence to hash
+     * @param start index of the first character to hash
+     * @param end index after the last character to hash
+     * @param seed initial seed value
+     * @return 64 bit hash of the given characters
+     */
+    public static long hash64(final CharSequence text, int start, int end, int seed) {
+        return hash64(null, text, start, end, seed);
+    }
+
+    /**
+     * Generates 64 bit hash from a slice of a char array, encoded in UTF-8.
+     *
+     * @param chars char array with the characters to hash
+     * @param offset index of the first character to hash
+     * @param length number of characters to hash
+     * @param seed initial seed value
+     * @return 64 bit hash of the given characters
+     */
+    public static long hash64(final char[] chars, int offset, int length, int seed) {
+        return hash64(chars, null, offset, offset + length, seed);
+    }
+
+    /**
+     * Generates 64 bit hash from the UTF-8 encoding of chars[start..end-1]
+     * (or text, if chars is null), see hash32(char[], CharSequence, int, int, int).
+     */
+    private static long hash64(final char[] chars, final CharSequence text, int start, int end, int seed) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+
+        boolean ascii = isAscii(chars, text, start, end);
+        int length = ascii ? end - start : utf8Length(chars, text, start, end);
+        long h = (seed&0xffffffffl)^(length*m);
+        long k = 0;
+        int shift = 0;
+
+        int i = start;
+        if (ascii) {
+            // only ASCII characters: one byte per character
+            for (; i+8<=end; i+=8) {
+                if (chars != null)
+                    k = (long)chars[i]         | ((long)chars[i+1]<<8)
+                      | ((long)chars[i+2]<<16) | ((long)chars[i+3]<<24)
+                      | ((long)chars[i+4]<<32) | ((long)chars[i+5]<<40)
+                      | ((long)chars[i+6]<<48) | ((long)chars[i+7]<<56);
+                else
+                    k = (long)text.charAt(i)         | ((long)text.charAt(i+1)<<8)
+                      | ((long)text.charAt(i+2)<<16) | ((long)text.charAt(i+3)<<24)
+                      | ((long)text.charAt(i+4)<<32) | ((long)text.charAt(i+5)<<40)
+                      | ((long)text.charAt(i+6)<<48) | ((long)text.charAt(i+7)<<56);
+                k *= m;
+                k ^= k >>> r;
+                k *= m;
+                h ^= k;
+                h *= m;
+            }
+            k = 0;
+            for (; i<end; i++, shift += 8)
+                k |= (long)(chars != null ? chars[i] : text.charAt(i)) << shift;
+        }
+
+        for (; i<end; i++) {
+            int c = chars != null ? chars[i] : text.charAt(i);
+            int bytes;  // the UTF-8 bytes of the character, first byte lowest
+            int nbOfBytes;
+            if (c < 0x80) {
+                bytes = c;
+                nbOfBytes = 1;
+            } else {
+                int codePoint = codePoint(chars, text, i, end, c);
+                if (codePoint > 0xffff)
+                    i++;
+                bytes = utf8Bytes(codePoint);
+                nbOfBytes = utf8Length(codePoint);
+            }
+
+            for (int b=0; b<nbOfBytes; b++, bytes >>>= 8) {
+                k |= (long)(bytes&0xff) << shift;
+                shift += 8;
+                if (shift == 64) {
+                    k *= m;
+                    k ^= k >>> r;
+                    k *= m;
+                    h ^= k;
+                    h *= m;
+                    k = 0;
+                    shift = 0;
+                }
+            }
+        }
+
+        if (shift > 0) {
+            h ^= k;
+            h *= m;
+        }
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+
+        return h;
+    }
+
+    /**
+     * The code point of the character c at index i, combined with the low
+     * surrogate at i+1 if c is a high surrogate. An unpaired surrogate
+     * gives '?'.
+     */
+    private static int codePoint(final char[] chars, final CharSequence text, int i, int end, int c) {
+        if (!Character.isSurrogate((char) c))
+            return c;
+        if (Character.isHighSurrogate((char) c) && i+1 < end) {
+            char low = chars != null ? chars[i+1] : text.charAt(i+1);
+            if (Character.isLowSurrogate(low))
+                return Character.toCodePoint((char) c, low);
+        }
+        return '?';
+    }
+
+    /**
+     * The UTF-8 bytes of a code point, packed in an int with the first
+     * byte lowest.
+     */
+    private static int utf8Bytes(int codePoint) {
+        if (codePoint < 0x80)
+            return codePoint;
+        if (codePoint < 0x800)
+            return (0xc0 | (codePoint >>> 6))
+                    | (0x80 | (codePoint & 0x3f)) << 8;
+        if (codePoint < 0x10000)
+            return (0xe0 | (codePoint >>> 12))
+                    | (0x80 | ((codePoint >>> 6) & 0x3f)) << 8
+                    | (0x80 | (codePoint & 0x3f)) << 16;
+        return (0xf0 | (codePoint >>> 18))
+                | (0x80 | ((codePoint >>> 12) & 0x3f)) << 8
+                | (0x80 | ((codePoint >>> 6) & 0x3f)) << 16
+                | (0x80 | (codePoint & 0x3f)) << 24;
+    }
+
+    private static int utf8Length(int codePoint) {
+        return codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+    }
+
+    private static boolean isAscii(final char[] chars, final CharSequence text, int start, int end) {
+        if (chars != null) {
+            for (int i=start; i<end; i++)
+                if (chars[i] >= 0x80)
+                    return false;
+        } else {
+            for (int i=start; i<end; i++)
+                if (text.charAt(i) >= 0x80)
+                    return false;
+        }
+        return true;
+    }
+
+    /**
+     * The number of bytes in the UTF-8 encoding of chars[start..end-1]
+     * (or text, if chars is null).
+     */
+    private static int utf8Length(final char[] chars, final CharSequence text, int start, int end) {
+        int length = end - start;
+        for (int i=start; i<end; i++) {
+            int c = chars != null ? chars[i] : text.charAt(i);
+            if (c >= 0x80) {
+                int codePoint = codePoint(chars, text, i, end, c);
+                if (codePoint > 0xffff)
+                    i++;
+                // a surrogate pair takes 2 chars and 4 bytes
+                length += utf8Length(codePoint) - (codePoint > 0xffff ? 2 : 1);
+            }
+        }
+        return length;
     }
 
 }
@@ -5,11 +5,7 @@
  */
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Random;
-import java.util.Set;
-import java.util.Arrays;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This class is a stub for naive Bayes with count-min sketch
@@ -18,15 +14,15 @@ public class NaiveBayesCountMinSketch extends OnlineTextClassifier{
 
     private int nbOfHashes;
     private int logNbOfBuckets;
-    private int[][] hashAB; //hashAB[h][0] and hashAB[h][1] are the resp. constants 'a' and 'b' used in universal hashing for the h'th hash function. 
 
-    private int[][][] counts; // counts[c][h][i]: The count of n-grams in e-mails of class c (spam: c=1)
-                              // that hash to value i for the h'th hash function.
-    private int[] classCounts; //classCounts[c] the count of e-mails of class c (spam: c=1)
-    private int[] ngramCounts; //ngramCounts[c] the count of ngrams of class c (spam: c=1)
+    private CountMinSketch counts; // counts.getCount(h, i, c): The count of n-grams in e-mails of class c (spam: c=1)
+                                   // that hash to value i for the h'th hash function.
+    private LongAdder[] classCounts; //classCounts[c] the count of e-mails of class c (spam: c=1)
+    private LongAdder[] ngramCounts; //ngramCounts[c] the count of ngrams of class c (spam: c=1)
     private int nbOfBuckets;
-    private int prime;
     private int seed;
+    private boolean logTable; // if true, the logs of the counts come from LogTable, see setLogTable()
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[1024]); // see scratch()
     
     /* FILL IN HERE */
 
@@ -43,41 +39,138 @@ public class NaiveBayesCountMinSketch extends OnlineTextClassifier{
      * @param threshold The threshold for classifying something as positive (spam). Classify as spam if Pr(Spam|n-grams)>threshold)
      */
     public NaiveBayesCountMinSketch(int nbOfHashes, int logNbOfBuckets, double threshold){
+        this(nbOfHashes, logNbOfBuckets, threshold, false);
+    }
+
+    /**
+     * Initialize the naive Bayes classifier
+     *
+     * In concurrent mode, several threads can call update() at the same time, and makePrediction() at the same time
+     * as update(). A prediction then sees the counts of the concurrent updates partly.
+     *
+     * @param nbOfHashes The number of hash functions in the count-min sketch
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^NbOfBuckets-1]
+     * @param threshold The threshold for classifying something as positive (spam). Classify as spam if Pr(Spam|n-grams)>threshold)
+     * @param concurrent If true, the classifier can be updated by several threads at the same time
+     */
+    public NaiveBayesCountMinSketch(int nbOfHashes, int logNbOfBuckets, double threshold, boolean concurrent){
+        this(nbOfHashes, logNbOfBuckets, threshold, concurrent, DEFAULT_SEED);
+    }
+
+    /**
+     * Initialize the naive Bayes classifier
+     *
+     * @param nbOfHashes The number of hash functions in the count-min sketch
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^NbOfBuckets-1]
+     * @param threshold The threshold for classifying something as positive (spam). Classify as spam if Pr(Spam|n-grams)>threshold)
+     * @param concurrent If true, the classifier can be updated by several threads at the same time
+     * @param seed The seed of the hash functions
+     */
+    public NaiveBayesCountMinSketch(int nbOfHashes, int logNbOfBuckets, double threshold, boolean concurrent, int seed){
+        this(nbOfHashes, logNbOfBuckets, threshold, concurrent, seed, false);
+    }
+
+    /**
+     * Initialize the naive Bayes classifier
+     *
+     * @param nbOfHashes The number of hash functions in the count-min sketch
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^NbOfBuckets-1]
+     * @param threshold The threshold for classifying something as positive (spam). Classify as spam if Pr(Spam|n-grams)>threshold)
+     * @param concurrent If true, the classifier can be updated by several threads at the same time
+     * @param seed The seed of the hash functions
+     * @param offHeap If true, the sketch is stored outside the Java heap, see IntStorage.offHeap()
+     */
+    public NaiveBayesCountMinSketch(int nbOfHashes, int logNbOfBuckets, double threshold, boolean concurrent, int seed,
+                                    boolean offHeap){
+        this(nbOfHashes, logNbOfBuckets, threshold, concurrent, seed, offHeap, CountMinSketch.INT_COUNTERS);
+    }
+
+    /**
+     * Initialize the naive Bayes classifier
+     *
+     * @param nbOfHashes The number of hash functions in the count-min sketch
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^NbOfBuckets-1]
+     * @param threshold The threshold for classifying something as positive (spam). Classify as spam if Pr(Spam|n-grams)>threshold)
+     * @param concurrent If true, the classifier can be updated by several threads at the same time
+     * @param seed The seed of the hash functions
+     * @param offHeap If true, the sketch is stored outside the Java heap, see IntStorage.offHeap()
+     * @param counterBits The width of the counters of the sketch, see CountMinSketch: 32, 16 or 8 (Morris) bits
+     */
+    public NaiveBayesCountMinSketch(int nbOfHashes, int logNbOfBuckets, double threshold, boolean concurrent, int seed,
+                                    boolean offHeap, int counterBits){
+        this(nbOfHashes, logNbOfBuckets, threshold, concurrent, seed, offHeap, counterBits, false);
+    }
+
+    /**
+     * Initialize the naive Bayes classifier
+     *
+     * @param nbOfHashes The number of hash functions in the count-min sketch
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^NbOfBuckets-1]
+     * @param threshold The threshold for classifying something as positive (spam). Classify as spam if Pr(Spam|n-grams)>threshold)
+     * @param concurrent If true, the classifier can be updated by several threads at the same time
+     * @param seed The seed of the hash functions
+     * @param offHeap If true, the sketch is stored outside the Java heap, see IntStorage.offHeap()
+     * @param counterBits The width of the counters of the sketch, see CountMinSketch: 32, 16 or 8 (Morris) bits
+     * @param conservative If true, the sketch is updated conservatively, see CountMinSketch
+     */
+    public NaiveBayesCountMinSketch(int nbOfHashes, int logNbOfBuckets, double threshold, boolean concurrent, int seed,
+                                    boolean offHeap, int counterBits, boolean conservative){
+        // Init counts, all 1
+        this(nbOfHashes, logNbOfBuckets, threshold, seed,
+                new CountMinSketch(nbOfHashes, logNbOfBuckets, 2, seed, 1, concurrent, offHeap, counterBits, conservative));
+    }
+
+    /**
+     * Initialize the naive Bayes classifier with the given sketch, and the counts of n-grams and e-mails of the
+     * Laplace estimation
+     */
+    private NaiveBayesCountMinSketch(int nbOfHashes, int logNbOfBuckets, double threshold, int seed, CountMinSketch counts){
         this.nbOfHashes = nbOfHashes;
         this.logNbOfBuckets=logNbOfBuckets;
         this.threshold = threshold;
-        this.prime = Primes.findLeastPrimeNumber(this.nbOfBuckets);
-    	this.seed = (int) Math.random() * 1000;
+    	this.seed = seed;
         
         this.nbOfBuckets =((int) Math.pow(2, logNbOfBuckets));
 
-        this.counts = new int[2][this.nbOfHashes][this.nbOfBuckets];
-        this.classCounts = new int[2];
-        
-        // Init hashAB
-    	hashAB = new int[this.nbOfHashes][2];
-    	Random rand = new Random();
-    	for (int i = 0; i < this.nbOfHashes; i++) {
-    		hashAB[i][0] = rand.nextInt(this.prime - 1) + 1; // a != 0
-    		hashAB[i][1] = rand.nextInt(this.prime);
-    	}
-    	
-    	// Init counts
-    	counts = new int[2][nbOfHashes][nbOfBuckets];
-    	for (int c = 0; c < 2; c++)
-    		for (int h = 0; h < nbOfHashes; h++)
-    			for (int i = 0; i < nbOfBuckets; i++)
-    				counts[c][h][i] = 1;
+    	this.counts = counts;
         
         // Init ngramCounts
-    	ngramCounts = new int[2];
-    	ngramCounts[0] = nbOfBuckets;
-    	ngramCounts[1] = nbOfBuckets;
+    	ngramCounts = new LongAdder[2];
+    	for (int c = 0; c < 2; c++) {
+    		ngramCounts[c] = new LongAdder();
+    		ngramCounts[c].add(nbOfBuckets);
+    	}
     	
     	// Init classCounts
-    	classCounts = new int[2];
-    	classCounts[0] = 1;
-    	classCounts[1] = 1;
+    	classCounts = new LongAdder[2];
+    	for (int c = 0; c < 2; c++) {
+    		classCounts[c] = new LongAdder();
+    		classCounts[c].increment();
+    	}
+    }
+
+    /**
+     * Sets the scoring mode. With the log table, makePrediction() takes the logs of the small counts from LogTable
+     * instead of computing them; the predictions are the same.
+     *
+     * @param logTable If true, the logs of the counts come from LogTable
+     */
+    public void setLogTable(boolean logTable) {
+        this.logTable = logTable;
+    }
+
+    /**
+     * @return The natural logarithm of a count, from LogTable in that scoring mode
+     */
+    private double log(long count) {
+        return logTable ? LogTable.log(count) : Math.log((double) count);
+    }
+
+    /**
+     * @return The log of the total of the class counts, which normalizes the class priors
+     */
+    private double logClassNormalizer() {
+        return HelperFunctions.logSum(log(classCounts[0].sum()), log(classCounts[1].sum()));
     }
 
     /**
@@ -93,20 +186,24 @@ public class NaiveBayesCountMinSketch extends OnlineTextClassifier{
      * @return the hash value of the h'th hash function for string str
      */
     private int hash(String str, int h){
+        return hash(NgramHash.fingerprint(str), h);
+    }
+
+    /**
+     * Calculate the hash value of the h'th hash function for the fingerprint of an n-gram
+     *
+     * @param fingerprint The fingerprint of the n-gram (see NgramHash)
+     * @param h The number of the hash function to use.
+     * @return the hash value of the h'th hash function for the n-gram
+     */
+    private int hash(long fingerprint, int h){
         int v;
 
-        if (h < 0 || h >= nbOfBuckets){
+        if (h < 0 || h >= nbOfHashes){
         	v = -1; // will cause system exception OutOfBounds
         	System.out.println("Failure in NB CMS hash(): h out of range");
         } else {
-        	
-        	int x = MurmurHash.hash32(str, seed);
-        	int a = hashAB[h][0];
-        	int b = hashAB[h][1];
-        	
-        	int y = HelperFunctions.posMod(a*x + b, prime);
-        	v = HelperFunctions.posMod(y, nbOfBuckets);
-        	
+        	v = counts.getHashing().rowIndex(fingerprint, h);
         }
         	
 
@@ -126,19 +223,74 @@ public class NaiveBayesCountMinSketch extends OnlineTextClassifier{
         int feature_label = labeledText.label;
         
         // update classCounts
-        classCounts[feature_label]++;
+        classCounts[feature_label].increment();
         
+        long[] fingerprints = labeledText.text.getFingerprints();
+
         // update ngramCounts
-        ngramCounts[feature_label] += labeledText.text.ngrams.size();
+        ngramCounts[feature_label].add(fingerprints.length);
         
         // update counts
-        for (String ngram : labeledText.text.ngrams)
-        	for (int h = 0; h < nbOfHashes; h++)
-        		counts[feature_label][h][hash(ngram,h)]++;
+        for (long fingerprint : fingerprints)
+        	counts.add(fingerprint, feature_label);
         
     }
 
 
+    /**
+     * Adds the counts of another classifier, e.g. one that was trained on another shard of the stream, to this one.
+     * The result is the classifier that was trained on the e-mails of both. The Laplace estimates of the other
+     * classifier are not added again.
+     *
+     * The other classifier should not be updated during the merge.
+     *
+     * @param other A classifier with the same number of hash functions and buckets and the same seed
+     */
+    public void merge(NaiveBayesCountMinSketch other) {
+        counts.merge(other.counts); // checks the dimensions and the seed
+        for (int c = 0; c < 2; c++) {
+            ngramCounts[c].add(other.ngramCounts[c].sum() - other.nbOfBuckets);
+            classCounts[c].add(other.classCounts[c].sum() - 1);
+        }
+        addExamplesProcessed(other.nbExamplesProcessed);
+    }
+
+
+    @Override
+    protected void writeModel(ModelSnapshot.Writer out) throws IOException {
+        out.writeInt(nbOfHashes);
+        out.writeInt(logNbOfBuckets);
+        out.writeInt(seed);
+        out.writeInt(counts.getCounterBits());
+        out.writeBoolean(counts.isConservative());
+        counts.writeCounts(out);
+        for (int c = 0; c < 2; c++) {
+            out.writeLong(ngramCounts[c].sum());
+            out.writeLong(classCounts[c].sum());
+        }
+    }
+
+    /**
+     * Reads the parameters that writeModel() wrote, see OnlineTextClassifier.load()
+     */
+    static NaiveBayesCountMinSketch readModel(ModelSnapshot.Reader in) throws IOException {
+        int nbOfHashes = in.readInt();
+        int logNbOfBuckets = in.readInt();
+        int seed = in.readInt();
+        int counterBits = in.readInt();
+        boolean conservative = in.readBoolean();
+        IntStorage counts = in.readInts(CountMinSketch.storageLength(nbOfHashes, logNbOfBuckets, 2, counterBits));
+        NaiveBayesCountMinSketch nb = new NaiveBayesCountMinSketch(nbOfHashes, logNbOfBuckets, 0, seed,
+                new CountMinSketch(nbOfHashes, logNbOfBuckets, 2, seed, 1, false, counterBits, conservative, counts));
+        for (int c = 0; c < 2; c++) {
+            nb.ngramCounts[c].reset();
+            nb.ngramCounts[c].add(in.readLong());
+            nb.classCounts[c].reset();
+            nb.classCounts[c].add(in.readLong());
+        }
+        return nb;
+    }
+
     /**
      * Uses the current model to make a prediction about the incoming e-mail belonging to class "1" (spam)
      * The prediction is the probability for the e-mail to be spam.
@@ -153,22 +305,30 @@ public class NaiveBayesCountMinSketch extends OnlineTextClassifier{
     public double makePrediction(ParsedText text) {
         double pr = 0.0;
         
-        List<String> ngramList = new ArrayList<String>(text.ngrams);
+        long[] fingerprints = text.getFingerprints();
 
-        // minCount[c][ngram] is the minimum count over all hash functions given class c and ngram
-        int[][] minCount = new int[2][ngramList.size()];
-        for (int i = 0; i < ngramList.size(); i++) {
-        	
-        	String ngram = ngramList.get(i);
-        	int[] min = getMinCount(ngram);
-        	minCount[0][i] = min[0];
-        	minCount[1][i] = min[1];
-        	
+        // a count can not exceed the number of n-grams of the class
+        long ngramCountHam = ngramCounts[0].sum();
+        long ngramCountSpam = ngramCounts[1].sum();
+
+        // the minimum counts over all hash functions of both classes, see CountMinSketch.minCountPair(). They are
+        // gathered first, so that the lookups in the sketch overlap their cache misses, into a reused scratch array
+        long[] minCounts = scratch(fingerprints.length);
+        for (int i = 0; i < fingerprints.length; i++)
+        	minCounts[i] = counts.minCountPair(fingerprints[i]);
+
+        // ln(Pr[Text = given set of n-grams | S = c]) of both classes in one pass
+        double logLikelihoodHam = 0;
+        double logLikelihoodSpam = 0;
+        for (int i = 0; i < fingerprints.length; i++) {
+        	logLikelihoodHam += log(Math.min((int) minCounts[i], ngramCountHam));
+        	logLikelihoodSpam += log(Math.min(minCounts[i] >>> 32, ngramCountSpam));
         }
         
         // from this point, similar to Feature Hashing
-        double logJPDSpam = logJointProb(minCount[1],1);
-        double logJPDHam = logJointProb(minCount[0],0);
+        double logNormalizer = logClassNormalizer();
+        double logJPDSpam = logJointProb(logLikelihoodSpam, fingerprints.length, ngramCountSpam, 1, logNormalizer);
+        double logJPDHam = logJointProb(logLikelihoodHam, fingerprints.length, ngramCountHam, 0, logNormalizer);
         
         double logPr = logJPDSpam - HelperFunctions.logSum(logJPDSpam,logJPDHam);
         
@@ -183,36 +343,22 @@ public class NaiveBayesCountMinSketch extends OnlineTextClassifier{
         
         return pr;
     }
-
+    
     /**
-     * Calculates the minimum count of ngram for both spam and ham.
-     * @param ngram
-     * @return An array with 2 elements, one minimum count for each class (ham and spam).
+     * @return The scratch array of the current thread for the minimum counts of the n-grams, of length n at least
      */
-    private int[] getMinCount(String ngram) {
-    	int[] min = new int[2];
-    	min[0] = ngramCounts[0];
-    	min[1] = ngramCounts[1];
-    	
-    	for (int h = 0; h < nbOfHashes; h++) {
-    		int hashValue = hash(ngram,h);
-    		int countHam = counts[0][h][hashValue];
-    		int countSpam = counts[1][h][hashValue];
-    		
-    		if (min[0] > countHam)
-    			min[0] = countHam;
-    		
-    		if (min[1] > countSpam)
-    			min[1] = countSpam;
-    		
-    	}
-
-    	return min;
+    private static long[] scratch(int n) {
+        long[] scratch = SCRATCH.get();
+        if (scratch.length < n) {
+            scratch = new long[Math.max(n, 2 * scratch.length)];
+            SCRATCH.set(scratch);
+        }
+        return scratch;
     }
-    
+
     /**
      * Calculates the log of the joint prob. distribution P(Text, Class = c)
-     * @param text
+     * @param minCount The minimum count of every n-gram of the text in class c
      * @param c
      * @return
      */
@@ -222,12 +368,21 @@ public class NaiveBayesCountMinSketch extends OnlineTextClassifier{
         // ln(Pr[Text = given set of n-grams | S = c])
         for (int count : minCount) {
             // Note that probability P[ngram|c] = minCounts[ngram] / ngramCounts[c]
-        	result += Math.log((double) count);
+        	result += log(count);
         }
-        result -= minCount.length * Math.log((double) ngramCounts[c]);
+        return logJointProb(result, minCount.length, ngramCounts[c].sum(), c, logClassNormalizer());
+    }
+
+    /**
+     * Calculates the log of the joint prob. distribution P(Text, Class = c) from the sum of the logs of the counts of
+     * the n-grams, with the normalizer of the class priors that makePrediction() computes once for both classes
+     */
+    private double logJointProb(double logCounts, int nbOfNgrams, long ngramCount, int c, double logNormalizer) {
+        double result = logCounts;
+        result -= nbOfNgrams * log(ngramCount);
         
         // ln(Pr[S = c])
-        result += Math.log(classCounts[c]) - HelperFunctions.logSum(Math.log(classCounts[0]), Math.log(classCounts[1]));
+        result += log(classCounts[c].sum()) - logNormalizer;
     	
         
         return result;
@@ -238,8 +393,8 @@ public class NaiveBayesCountMinSketch extends OnlineTextClassifier{
      */
     public static void main(String[] args) throws IOException {
         if (args.length < 8) {
-            System.err.println("Usage: java NaiveBayesCountMinSketch <indexPath> <stopWordsPath> <logNbOfBuckets> <nbOfHashes> <threshold> <outPath> <reportingPeriod> <maxN> [-writeOutAllPredictions]");
-            throw new Error("Expected 8 or 9 arguments, got " + args.length + ".");
+            System.err.println("Usage: java NaiveBayesCountMinSketch <indexPath> <stopWordsPath> <logNbOfBuckets> <nbOfHashes> <threshold> <outPath> <reportingPeriod> <maxN> [-writeOutAllPredictions] [-binaryPredictions] [-roc] [-window=<n> [-halfLife=<n>] [-monitorPeriod=<n>]] [-parseThreads=<n>] [-hashNgrams] [-seed=<n>] [-save=<modelPath>] [-offHeap] [-counterBits=<32|16|8>] [-conservative] [-logTable]");
+            throw new Error("Expected at least 8 arguments, got " + args.length + ".");
         }
         try {
             // parse input
@@ -251,13 +406,27 @@ public class NaiveBayesCountMinSketch extends OnlineTextClassifier{
             String out = args[5];
             int reportingPeriod = Integer.parseInt(args[6]);
             int n = Integer.parseInt(args[7]);
-            boolean writeOutAllPredictions = args.length>8 && args[8].equals("-writeOutAllPredictions");
+            boolean writeOutAllPredictions = HelperFunctions.hasFlag(args, 8, "-writeOutAllPredictions");
+            boolean binaryPredictions = HelperFunctions.hasFlag(args, 8, "-binaryPredictions");
+            boolean roc = HelperFunctions.hasFlag(args, 8, "-roc");
+            int windowSize = HelperFunctions.getIntOption(args, 8, "-window", 0);
+            int halfLife = HelperFunctions.getIntOption(args, 8, "-halfLife", windowSize);
+            int monitorPeriod = HelperFunctions.getIntOption(args, 8, "-monitorPeriod", reportingPeriod);
+            int nbOfParseThreads = HelperFunctions.getIntOption(args, 8, "-parseThreads", 1);
+            boolean hashNgrams = HelperFunctions.hasFlag(args, 8, "-hashNgrams");
+            int seed = HelperFunctions.getIntOption(args, 8, "-seed", DEFAULT_SEED);
+            boolean offHeap = HelperFunctions.hasFlag(args, 8, "-offHeap");
+            int counterBits = HelperFunctions.getIntOption(args, 8, "-counterBits", CountMinSketch.INT_COUNTERS);
+            boolean conservative = HelperFunctions.hasFlag(args, 8, "-conservative");
+            boolean logTable = HelperFunctions.hasFlag(args, 8, "-logTable");
+            String modelPath = HelperFunctions.getStringOption(args, 8, "-save", null);
 
-            // initialize e-mail stream
-            MailStream stream = new MailStream(indexPath, new EmlParser(stopWordsPath,n));
+            // initialize e-mail stream (an index or a compiled corpus)
+            MailStream stream = MailStream.open(indexPath, stopWordsPath, n, nbOfParseThreads, hashNgrams);
 
             // initialize learner
-            NaiveBayesCountMinSketch nb = new NaiveBayesCountMinSketch(nbOfHashes ,logNbOfBuckets, threshold);
+            NaiveBayesCountMinSketch nb = new NaiveBayesCountMinSketch(nbOfHashes ,logNbOfBuckets, threshold, false, seed, offHeap, counterBits, conservative);
+            nb.setLogTable(logTable);
 
             // generate output for the learning curve
             EvaluationMetric[] evaluationMetrics = new EvaluationMetric[5]; //ADD AT LEAST TWO MORE EVALUATION METRICS
@@ -266,7 +435,19 @@ public class NaiveBayesCountMinSketch extends OnlineTextClassifier{
             evaluationMetrics[2] = new Precision();
             evaluationMetrics[3] = new F1Score();
             evaluationMetrics[4] = new BalancedAccuracy();
-            nb.makeLearningCurve(stream, evaluationMetrics, out+".nbcms", reportingPeriod, writeOutAllPredictions);
+            ScoreHistogram scores = roc ? new ScoreHistogram() : null;
+            WindowedEvaluation monitor = windowSize > 0
+                    ? new WindowedEvaluation(evaluationMetrics, windowSize, halfLife, monitorPeriod, out+".nbcms") : null;
+            try {
+                nb.makeLearningCurve(stream, evaluationMetrics, out+".nbcms", reportingPeriod, writeOutAllPredictions, binaryPredictions, scores, monitor);
+            } finally {
+                if (monitor != null)
+                    monitor.close();
+            }
+            if (roc)
+                scores.writeCurves(out+".nbcms", evaluationMetrics);
+            if (modelPath != null)
+                nb.save(modelPath);
 
         } catch (FileNotFoundException e) {
             System.err.println(e.toString());
@@ -6,6 +6,7 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -15,10 +16,13 @@ public class NaiveBayesFeatureHashing extends OnlineTextClassifier{
 
     public int logNbOfBuckets;
     private int nbOfBuckets;
-    public int[][] counts; // counts[c][i]: The count of n-grams in e-mails of class c (spam: c=1) that hash to value i
-    private int[] ngramCounts; //ngramCounts[c] the count of ngrams of class c (spam: c=1). Equal to sum over all columns of 'counts'.
-    private int[] classCounts; //classCounts[c] the count of e-mails of class c (spam: c=1)
+    public IntStorage[] counts; // counts[c].get(i): The count of n-grams in e-mails of class c (spam: c=1) that hash to value i
+    private LongAdder[] ngramCounts; //ngramCounts[c] the count of ngrams of class c (spam: c=1). Equal to sum over all columns of 'counts'.
+    private LongAdder[] classCounts; //classCounts[c] the count of e-mails of class c (spam: c=1)
     private int seed;
+    private boolean concurrent; // if true, counts are incremented atomically, so several threads can update
+    private boolean logTable; // if true, the logs of the counts come from LogTable, see setLogTable()
+
     /* FILL IN HERE */
 
     /**
@@ -34,27 +38,105 @@ public class NaiveBayesFeatureHashing extends OnlineTextClassifier{
      * @param threshold The threshold for classifying something as positive (spam). Classify as spam if Pr(Spam|n-grams)>threshold)
      */
     public NaiveBayesFeatureHashing(int logNbOfBuckets, double threshold){
+        this(logNbOfBuckets, threshold, false);
+    }
+
+    /**
+     * Initialize the naive Bayes classifier
+     *
+     * In concurrent mode, several threads can call update() at the same time, and makePrediction() at the same time
+     * as update(). A prediction then sees the counts of the concurrent updates partly.
+     *
+     * @param logNbOfBuckets The hash function hashes to the range [0,2^NbOfBuckets-1]
+     * @param threshold The threshold for classifying something as positive (spam). Classify as spam if Pr(Spam|n-grams)>threshold)
+     * @param concurrent If true, the classifier can be updated by several threads at the same time
+     */
+    public NaiveBayesFeatureHashing(int logNbOfBuckets, double threshold, boolean concurrent){
+        this(logNbOfBuckets, threshold, concurrent, DEFAULT_SEED);
+    }
+
+    /**
+     * Initialize the naive Bayes classifier
+     *
+     * @param logNbOfBuckets The hash function hashes to the range [0,2^NbOfBuckets-1]
+     * @param threshold The threshold for classifying something as positive (spam). Classify as spam if Pr(Spam|n-grams)>threshold)
+     * @param concurrent If true, the classifier can be updated by several threads at the same time
+     * @param seed The seed of the hash function
+     */
+    public NaiveBayesFeatureHashing(int logNbOfBuckets, double threshold, boolean concurrent, int seed){
+        this(logNbOfBuckets, threshold, concurrent, seed, false);
+    }
+
+    /**
+     * Initialize the naive Bayes classifier
+     *
+     * @param logNbOfBuckets The hash function hashes to the range [0,2^NbOfBuckets-1]
+     * @param threshold The threshold for classifying something as positive (spam). Classify as spam if Pr(Spam|n-grams)>threshold)
+     * @param concurrent If true, the classifier can be updated by several threads at the same time
+     * @param seed The seed of the hash function
+     * @param offHeap If true, the counts are stored outside the Java heap, see IntStorage.offHeap()
+     */
+    public NaiveBayesFeatureHashing(int logNbOfBuckets, double threshold, boolean concurrent, int seed, boolean offHeap){
+        this(logNbOfBuckets, threshold, concurrent, seed, laplaceCounts(1 << logNbOfBuckets, offHeap));
+    }
+
+    /**
+     * @return The counts of both classes, all 1 (Laplace estimation)
+     */
+    private static IntStorage[] laplaceCounts(int nbOfBuckets, boolean offHeap) {
+        IntStorage[] counts = new IntStorage[2];
+        for (int c = 0; c <= 1; c++) {
+            counts[c] = IntStorage.allocate(nbOfBuckets, offHeap);
+            counts[c].fill(1);
+        }
+        return counts;
+    }
+
+    /**
+     * Initialize the naive Bayes classifier with the given counts, and the counts of n-grams and e-mails of the
+     * Laplace estimation
+     */
+    private NaiveBayesFeatureHashing(int logNbOfBuckets, double threshold, boolean concurrent, int seed, IntStorage[] counts){
         this.logNbOfBuckets=logNbOfBuckets;
         this.threshold = threshold;
+        this.concurrent = concurrent;
         this.nbOfBuckets=((int) Math.pow(2, logNbOfBuckets));
+        this.counts = counts;
+        this.ngramCounts = new LongAdder[2];
+    	this.classCounts = new LongAdder[2];
+    	this.seed = seed;
 
-        this.counts = new int[2][this.nbOfBuckets];
-        this.ngramCounts = new int[2];
-    	this.classCounts = new int[2];
-    	this.seed = (int) Math.random() * 1000;
-        
         // Laplace estimation
         for (int c = 0; c <= 1; c ++) {
-            this.classCounts[c] += 1;
-            for (int i = 0; i < nbOfBuckets; i++) {
-                this.counts[c][i] += 1;
-            }
+            this.ngramCounts[c] = new LongAdder();
+            this.ngramCounts[c].add(nbOfBuckets);
+            this.classCounts[c] = new LongAdder();
+            this.classCounts[c].increment();
         }
-        ngramCounts[0] = nbOfBuckets;
-    	ngramCounts[1] = nbOfBuckets;
-    	classCounts[0] = 1;
-    	classCounts[1] = 1;
-        
+    }
+
+    /**
+     * Sets the scoring mode. With the log table, makePrediction() takes the logs of the small counts from LogTable
+     * instead of computing them; the predictions are the same.
+     *
+     * @param logTable If true, the logs of the counts come from LogTable
+     */
+    public void setLogTable(boolean logTable) {
+        this.logTable = logTable;
+    }
+
+    /**
+     * @return The natural logarithm of a count, from LogTable in that scoring mode
+     */
+    private double log(long count) {
+        return logTable ? LogTable.log(count) : Math.log((double) count);
+    }
+
+    /**
+     * @return The log of the total of the class counts, which normalizes the class priors
+     */
+    private double logClassNormalizer() {
+        return HelperFunctions.logSum(log(classCounts[0].sum()), log(classCounts[1].sum()));
     }
 
     /**
@@ -69,11 +151,20 @@ public class NaiveBayesFeatureHashing extends OnlineTextClassifier{
      */
     public int hash(String str){
 
-    	int v = HelperFunctions.posMod(MurmurHash.hash32(str, seed), nbOfBuckets);
-        return v;
+    	return hash(NgramHash.fingerprint(str));
         
     }
 
+    /**
+     * Calculate the hash value for the fingerprint of an n-gram
+     *
+     * @param fingerprint The fingerprint of the n-gram (see NgramHash)
+     * @return the hash value, in the range [0,2^NbOfBuckets-1]
+     */
+    public int hash(long fingerprint){
+    	return (int) NgramHash.mix(fingerprint, seed) & (nbOfBuckets - 1);
+    }
+
     /**
      * This method will update the parameters of your model using the incoming mail.
      *
@@ -88,17 +179,90 @@ public class NaiveBayesFeatureHashing extends OnlineTextClassifier{
         int feature_label = labeledText.label;
         
         // Increment total spam/ham counter
-        classCounts[feature_label]++;
+        classCounts[feature_label].increment();
         
+        long[] fingerprints = labeledText.text.getFingerprints();
+
         // Update ngramCounts counter
-        ngramCounts[feature_label] += labeledText.text.ngrams.size();
+        ngramCounts[feature_label].add(fingerprints.length);
         
         // Handle n-gram counters
-        for (String ngram : labeledText.text.ngrams)
-        	counts[feature_label][hash(ngram)]++;
+        IntStorage labelCounts = counts[feature_label];
+        if (concurrent) {
+        	for (long fingerprint : fingerprints)
+        		labelCounts.addAtomic(hash(fingerprint), 1);
+        } else {
+        	for (long fingerprint : fingerprints)
+        		labelCounts.add(hash(fingerprint), 1);
+        }
     }
 
 
+    /**
+     * Adds the counts of another classifier, e.g. one that was trained on another shard of the stream, to this one.
+     * The result is the classifier that was trained on the e-mails of both. The Laplace estimates of the other
+     * classifier are not added again.
+     *
+     * The other classifier should not be updated during the merge.
+     *
+     * @param other A classifier with the same number of buckets and the same seed
+     */
+    public void merge(NaiveBayesFeatureHashing other) {
+        if (other.logNbOfBuckets != logNbOfBuckets || other.seed != seed)
+            throw new IllegalArgumentException("Can not merge a classifier with 2^" + other.logNbOfBuckets
+                    + " buckets (seed " + other.seed + ") into one with 2^" + logNbOfBuckets + " buckets (seed " + seed + ")");
+        for (int c = 0; c <= 1; c++) {
+            IntStorage labelCounts = counts[c];
+            IntStorage otherCounts = other.counts[c];
+            if (concurrent) {
+                for (int i = 0; i < nbOfBuckets; i++)
+                    labelCounts.addAtomic(i, otherCounts.get(i) - 1);
+            } else {
+                for (int i = 0; i < nbOfBuckets; i++)
+                    labelCounts.add(i, otherCounts.get(i) - 1);
+            }
+            ngramCounts[c].add(other.ngramCounts[c].sum() - nbOfBuckets);
+            classCounts[c].add(other.classCounts[c].sum() - 1);
+        }
+        addExamplesProcessed(other.nbExamplesProcessed);
+    }
+
+
+    @Override
+    protected void writeModel(ModelSnapshot.Writer out) throws IOException {
+        out.writeInt(logNbOfBuckets);
+        out.writeInt(seed);
+        for (int c = 0; c <= 1; c++) {
+            out.writeInts(counts[c]);
+            out.writeLong(ngramCounts[c].sum());
+            out.writeLong(classCounts[c].sum());
+        }
+    }
+
+    /**
+     * Reads the parameters that writeModel() wrote, see OnlineTextClassifier.load()
+     */
+    static NaiveBayesFeatureHashing readModel(ModelSnapshot.Reader in) throws IOException {
+        int logNbOfBuckets = in.readInt();
+        int seed = in.readInt();
+        IntStorage[] counts = new IntStorage[2];
+        long[] ngramCounts = new long[2];
+        long[] classCounts = new long[2];
+        for (int c = 0; c <= 1; c++) {
+            counts[c] = in.readInts(1 << logNbOfBuckets);
+            ngramCounts[c] = in.readLong();
+            classCounts[c] = in.readLong();
+        }
+        NaiveBayesFeatureHashing nb = new NaiveBayesFeatureHashing(logNbOfBuckets, 0, false, seed, counts);
+        for (int c = 0; c <= 1; c++) {
+            nb.ngramCounts[c].reset();
+            nb.ngramCounts[c].add(ngramCounts[c]);
+            nb.classCounts[c].reset();
+            nb.classCounts[c].add(classCounts[c]);
+        }
+        return nb;
+    }
+
     /**
      * Uses the current model to make a prediction about the incoming e-mail belonging to class "1" (spam)
      * The prediction is the probability for the e-mail to be spam.
@@ -111,8 +275,9 @@ public class NaiveBayesFeatureHashing extends OnlineTextClassifier{
      */
     @Override
     public double makePrediction(ParsedText text) {
-        double logJointProbSpam = logJointProb(text,1);
-        double logJointProbHam = logJointProb(text,0);
+        double logNormalizer = logClassNormalizer();
+        double logJointProbSpam = logJointProb(text,1,logNormalizer);
+        double logJointProbHam = logJointProb(text,0,logNormalizer);
         
         double logPr = logJointProbSpam - HelperFunctions.logSum(logJointProbSpam,logJointProbHam);
         
@@ -133,17 +298,27 @@ public class NaiveBayesFeatureHashing extends OnlineTextClassifier{
      * @return
      */
     public double logJointProb(ParsedText text, int c) {
+        return logJointProb(text, c, logClassNormalizer());
+    }
+
+    /**
+     * Calculates the log of the joint prob. distribution P(Text, Class = c), with the normalizer of the class priors
+     * that makePrediction() computes once for both classes
+     */
+    private double logJointProb(ParsedText text, int c, double logNormalizer) {
         double result = 0;
         
         // ln(Pr[Text = given set of n-grams | S = c])
-        for (String ngram : text.ngrams) {
-        	int hashValue = hash(ngram);
-        	result += Math.log((double) counts[c][hashValue]);
+        long[] fingerprints = text.getFingerprints();
+        IntStorage labelCounts = counts[c];
+        for (long fingerprint : fingerprints) {
+        	int hashValue = hash(fingerprint);
+        	result += log(labelCounts.get(hashValue));
         }
-        result -= text.ngrams.size() * Math.log((double) ngramCounts[c]);
+        result -= fingerprints.length * log(ngramCounts[c].sum());
         
         // ln(Pr[S = c])
-        result += Math.log(classCounts[c]) - HelperFunctions.logSum(Math.log(classCounts[0]), Math.log(classCounts[1]));
+        result += log(classCounts[c].sum()) - logNormalizer;
 
         return result; 	
     }
@@ -157,8 +332,8 @@ public class NaiveBayesFeatureHashing extends OnlineTextClassifier{
      */
     public static void main(String[] args) throws IOException {
         if (args.length < 7) {
-            System.err.println("Usage: java NaiveBayesFeatureHashing <indexPath> <stopWordsPath> <logNbOfBuckets> <threshold> <outPath> <reportingPeriod> <maxN> [-writeOutAllPredictions]");
-            throw new Error("Expected 7 or 8 arguments, got " + args.length + ".");
+            System.err.println("Usage: java NaiveBayesFeatureHashing <indexPath> <stopWordsPath> <logNbOfBuckets> <threshold> <outPath> <reportingPeriod> <maxN> [-writeOutAllPredictions] [-binaryPredictions] [-roc] [-window=<n> [-halfLife=<n>] [-monitorPeriod=<n>]] [-parseThreads=<n>] [-hashNgrams] [-seed=<n>] [-save=<modelPath>] [-offHeap] [-logTable]");
+            throw new Error("Expected at least 7 arguments, got " + args.length + ".");
         }
         try {
             // parse input
@@ -169,13 +344,25 @@ public class NaiveBayesFeatureHashing extends OnlineTextClassifier{
             String out = args[4];
             int reportingPeriod = Integer.parseInt(args[5]);
             int n = Integer.parseInt(args[6]);
-            boolean writeOutAllPredictions = args.length>7 && args[7].equals("-writeOutAllPredictions");
+            boolean writeOutAllPredictions = HelperFunctions.hasFlag(args, 7, "-writeOutAllPredictions");
+            boolean binaryPredictions = HelperFunctions.hasFlag(args, 7, "-binaryPredictions");
+            boolean roc = HelperFunctions.hasFlag(args, 7, "-roc");
+            int windowSize = HelperFunctions.getIntOption(args, 7, "-window", 0);
+            int halfLife = HelperFunctions.getIntOption(args, 7, "-halfLife", windowSize);
+            int monitorPeriod = HelperFunctions.getIntOption(args, 7, "-monitorPeriod", reportingPeriod);
+            int nbOfParseThreads = HelperFunctions.getIntOption(args, 7, "-parseThreads", 1);
+            boolean hashNgrams = HelperFunctions.hasFlag(args, 7, "-hashNgrams");
+            int seed = HelperFunctions.getIntOption(args, 7, "-seed", DEFAULT_SEED);
+            boolean offHeap = HelperFunctions.hasFlag(args, 7, "-offHeap");
+            boolean logTable = HelperFunctions.hasFlag(args, 7, "-logTable");
+            String modelPath = HelperFunctions.getStringOption(args, 7, "-save", null);
 
-            // initialize e-mail stream
-            MailStream stream = new MailStream(indexPath, new EmlParser(stopWordsPath,n));
+            // initialize e-mail stream (an index or a compiled corpus)
+            MailStream stream = MailStream.open(indexPath, stopWordsPath, n, nbOfParseThreads, hashNgrams);
 
             // initialize learner
-            NaiveBayesFeatureHashing nb = new NaiveBayesFeatureHashing(logNbOfBuckets, threshold);
+            NaiveBayesFeatureHashing nb = new NaiveBayesFeatureHashing(logNbOfBuckets, threshold, false, seed, offHeap);
+            nb.setLogTable(logTable);
 
             // generate output for the learning curve
             EvaluationMetric[] evaluationMetrics = new EvaluationMetric[5]; //ADD AT LEAST TWO MORE EVALUATION METRICS
@@ -184,7 +371,19 @@ public class NaiveBayesFeatureHashing extends OnlineTextClassifier{
             evaluationMetrics[2] = new Precision();
             evaluationMetrics[3] = new F1Score();
             evaluationMetrics[4] = new BalancedAccuracy();
-            nb.makeLearningCurve(stream, evaluationMetrics, out+".nbfh", reportingPeriod, writeOutAllPredictions);
+            ScoreHistogram scores = roc ? new ScoreHistogram() : null;
+            WindowedEvaluation monitor = windowSize > 0
+                    ? new WindowedEvaluation(evaluationMetrics, windowSize, halfLife, monitorPeriod, out+".nbfh") : null;
+            try {
+                nb.makeLearningCurve(stream, evaluationMetrics, out+".nbfh", reportingPeriod, writeOutAllPredictions, binaryPredictions, scores, monitor);
+            } finally {
+                if (monitor != null)
+                    monitor.close();
+            }
+            if (roc)
+                scores.writeCurves(out+".nbfh", evaluationMetrics);
+            if (modelPath != null)
+                nb.save(modelPath);
 
         } catch (FileNotFoundException e) {
             System.err.println(e.toString());
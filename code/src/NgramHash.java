@@ -0,0 +1,115 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.util.Arrays;
+import java.util.Collection;
+
+
+/**
+ * This class computes 64-bit fingerprints of n-grams.
+ *
+ * The fingerprint of a word is its 64-bit murmur hash. The fingerprint of an n-gram combines the fingerprints of
+ * its words from left to right, so the parser can compute the fingerprints of all n-grams from the fingerprints of
+ * the words, without building the n-grams as strings. fingerprint(String) gives the same value for an n-gram in
+ * its string form ("word1 word2").
+ *
+ * The classifiers map a fingerprint to their buckets with mix(), which mixes in their own seed.
+ */
+public final class NgramHash {
+
+    private static final int WORD_SEED = 0x2f9be2d1;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    // all methods static; private constructor.
+    private NgramHash() {}
+
+    /**
+     * @param word A stemmed word
+     * @return The fingerprint of the word
+     */
+    public static long word(String word) {
+        return MurmurHash.hash64(word, WORD_SEED);
+    }
+
+    /**
+     * @param chars A buffer with a stemmed word
+     * @param offset The offset of the word in the buffer
+     * @param length The length of the word
+     * @return The fingerprint of the word
+     */
+    public static long word(char[] chars, int offset, int length) {
+        return MurmurHash.hash64(chars, offset, length, WORD_SEED);
+    }
+
+    /**
+     * Extends the fingerprint of an n-gram with the next word
+     *
+     * @param ngram The fingerprint of an n-gram
+     * @param word The fingerprint of the next word
+     * @return The fingerprint of the (n+1)-gram
+     */
+    public static long combine(long ngram, long word) {
+        return (Long.rotateLeft(ngram, 29) ^ word) * GOLDEN_GAMMA;
+    }
+
+    /**
+     * @param ngram An n-gram: stemmed words separated by single spaces
+     * @return The fingerprint of the n-gram
+     */
+    public static long fingerprint(String ngram) {
+        int end = ngram.indexOf(' ');
+        if (end < 0)
+            return word(ngram);
+
+        long fingerprint = MurmurHash.hash64(ngram, 0, end, WORD_SEED);
+        while (end >= 0) {
+            int start = end + 1;
+            end = ngram.indexOf(' ', start);
+            long word = MurmurHash.hash64(ngram, start, end < 0 ? ngram.length() : end, WORD_SEED);
+            fingerprint = combine(fingerprint, word);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @param ngrams A set of n-grams
+     * @return The sorted, distinct fingerprints of the n-grams
+     */
+    public static long[] fingerprints(Collection<String> ngrams) {
+        long[] fingerprints = new long[ngrams.size()];
+        int i = 0;
+        for (String ngram : ngrams)
+            fingerprints[i++] = fingerprint(ngram);
+        return sortDistinct(fingerprints, i);
+    }
+
+    /**
+     * Sorts the first length values of an array and removes the duplicates
+     *
+     * @param values The values, which are sorted in place
+     * @param length The number of values to use
+     * @return A new array with the distinct values in ascending order
+     */
+    public static long[] sortDistinct(long[] values, int length) {
+        Arrays.sort(values, 0, length);
+        int nbOfDistinct = 0;
+        for (int i = 0; i < length; i++)
+            if (nbOfDistinct == 0 || values[i] != values[nbOfDistinct - 1])
+                values[nbOfDistinct++] = values[i];
+        return Arrays.copyOf(values, nbOfDistinct);
+    }
+
+    /**
+     * Mixes a fingerprint with a seed into a well distributed 64-bit value (the murmur3 finalizer)
+     *
+     * @param fingerprint The fingerprint of an n-gram
+     * @param seed The seed of the classifier
+     * @return The mixed value. Its low bits can be used as a bucket index.
+     */
+    public static long mix(long fingerprint, int seed) {
+        long z = fingerprint ^ (seed * GOLDEN_GAMMA);
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
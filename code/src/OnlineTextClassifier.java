@@ -4,10 +4,13 @@
  * Written by Jessa Bekker and Pieter Robberechts, 2020
  */
 import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 
 /**
@@ -19,13 +22,52 @@ abstract public class OnlineTextClassifier {
 
     protected double threshold;
 
+    protected boolean readOnly = false; // true for a model that was mapped from a snapshot, see map()
+
+    /**
+     The seed of the hash functions of a classifier that is created without one. It is fixed, so that runs are
+     reproducible and models that were trained separately with the default seed can be merged.
+     */
+    public static final int DEFAULT_SEED = 0;
+
+    private static final VarHandle NB_EXAMPLES_PROCESSED;
+    static {
+        try {
+            NB_EXAMPLES_PROCESSED = MethodHandles.lookup().findVarHandle(OnlineTextClassifier.class, "nbExamplesProcessed", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     /**
      This method updates the parameters of your model using the incoming mail.
 
      @param labeledText is an incoming e-mail with a spam/ham label
      */
     public void update(LabeledText labeledText){
-        nbExamplesProcessed++;
+        if (readOnly)
+            throw new UnsupportedOperationException("a mapped model can not be updated, load() it instead");
+        NB_EXAMPLES_PROCESSED.getAndAdd(this, 1); // atomically, for classifiers that several threads update
+    }
+
+    /**
+     Counts examples that this model learned from elsewhere, e.g. from a merged model.
+
+     @param nbOfExamples the number of examples
+     */
+    protected void addExamplesProcessed(int nbOfExamples){
+        NB_EXAMPLES_PROCESSED.getAndAdd(this, nbOfExamples);
+    }
+
+    /**
+     This method updates the parameters of your model using a batch of incoming mails, in their order.
+     Subclasses can override it to train on the mails of the batch in parallel.
+
+     @param batch are incoming e-mails with a spam/ham label
+     */
+    public void updateBatch(List<LabeledText> batch){
+        for (LabeledText example : batch)
+            update(example);
     }
 
     /**
@@ -46,6 +88,102 @@ abstract public class OnlineTextClassifier {
     public int classify(double prediction) {return prediction>threshold?1:0;}
 
 
+    /**
+     Saves the model to a snapshot file, see ModelSnapshot. The snapshot holds the parameters that predictions and
+     further training depend on; run-time settings, such as the number of threads that train, are not saved.
+
+     @param path the path of the snapshot
+     @throws IOException if the snapshot can not be written
+     */
+    public void save(String path) throws IOException {
+        try (ModelSnapshot.Writer out = new ModelSnapshot.Writer(path)) {
+            out.writeInt(ModelSnapshot.MAGIC);
+            out.writeInt(ModelSnapshot.VERSION);
+            out.writeString(getClass().getName());
+            out.writeDouble(threshold);
+            out.writeInt(nbExamplesProcessed);
+            writeModel(out);
+        }
+    }
+
+    /**
+     Loads a model that was saved with save()
+
+     @param path the path of the snapshot
+     @return the model, of the class that saved it
+     @throws IOException if the snapshot can not be read, is damaged or holds an unknown class of model
+     */
+    public static OnlineTextClassifier load(String path) throws IOException {
+        return read(path, false);
+    }
+
+    /**
+     Maps a model that was saved with save() read-only: its arrays are not read into the heap, makePrediction() reads
+     them from the file through the page cache. So the model is ready in milliseconds, whatever its size, and all the
+     JVMs on a host that map the same file share one copy of it in memory. A mapped model can not be updated, and its
+     checksum is not checked; use load() for that.
+
+     @param path the path of the snapshot
+     @return the read-only model, of the class that saved it
+     @throws IOException if the snapshot can not be mapped or holds an unknown class of model
+     */
+    public static OnlineTextClassifier map(String path) throws IOException {
+        OnlineTextClassifier model = read(path, true);
+        model.readOnly = true;
+        return model;
+    }
+
+    private static OnlineTextClassifier read(String path, boolean mapped) throws IOException {
+        try (ModelSnapshot.Reader in = new ModelSnapshot.Reader(path, mapped)) {
+            if (in.readInt() != ModelSnapshot.MAGIC)
+                throw new IOException(path + " is not a model snapshot");
+            int version = in.readInt();
+            if (version != ModelSnapshot.VERSION)
+                throw new IOException(path + " is a model snapshot of version " + version + ", expected "
+                        + ModelSnapshot.VERSION);
+            String className = in.readString();
+            double threshold = in.readDouble();
+            int nbExamplesProcessed = in.readInt();
+
+            OnlineTextClassifier model;
+            switch (className) {
+                case "NaiveBayesFeatureHashing":
+                    model = NaiveBayesFeatureHashing.readModel(in);
+                    break;
+                case "NaiveBayesCountMinSketch":
+                    model = NaiveBayesCountMinSketch.readModel(in);
+                    break;
+                case "PerceptronFeatureHashing":
+                    model = PerceptronFeatureHashing.readModel(in);
+                    break;
+                case "PerceptronCountMinSketch":
+                    model = PerceptronCountMinSketch.readModel(in);
+                    break;
+                case "AdjustedPerceptronFeatureHashing":
+                    model = AdjustedPerceptronFeatureHashing.readModel(in);
+                    break;
+                case "PerceptronL2RegFeatureHashing":
+                    model = PerceptronL2RegFeatureHashing.readModel(in);
+                    break;
+                default:
+                    throw new IOException(path + " holds a model of unknown class " + className);
+            }
+            model.threshold = threshold;
+            model.nbExamplesProcessed = nbExamplesProcessed;
+            return model;
+        }
+    }
+
+    /**
+     Writes the parameters of the model to a snapshot. Every subclass implements this method and adds a static
+     readModel() that reads them back, and a case for it in read().
+
+     @param out the snapshot
+     @throws IOException if the snapshot can not be written
+     */
+    abstract protected void writeModel(ModelSnapshot.Writer out) throws IOException;
+
+
     /**
      This method produces files with the scores of the model after seeing different numbers of examples.
      The files can be used to plot learning curves.
@@ -71,79 +209,113 @@ abstract public class OnlineTextClassifier {
      @param writeOutAllPredictions when this is true, all the predictions are written to file.
      **/
     public void makeLearningCurve(MailStream mailStream, EvaluationMetric[] evals, String out, int reportingPeriod, boolean writeOutAllPredictions) throws FileNotFoundException {
+        makeLearningCurve(mailStream, evals, out, reportingPeriod, writeOutAllPredictions, false, null, null);
+    }
 
-        PrintWriter[] evalWriters = new PrintWriter[evals.length];
-        for (int e=0; e< evals.length; e++)
-            evalWriters[e] = new PrintWriter(out+"."+evals[e].name());
-        PrintWriter predictionWriter = writeOutAllPredictions ? new PrintWriter(out+".pred") : null;
-        DecimalFormat df = new DecimalFormat("0.000");
-
-        int nbToTest = 10;
-
-        System.out.println("Start training/testing");
-
-        Iterator<LabeledText> iterator = mailStream.iterator();
-        int i;
-
-        boolean hasNext = iterator.hasNext();
-
-        while(hasNext) {
-            ArrayList<LabeledText> buffer = new ArrayList<>(nbToTest);
-
-            int TP = 0;
-            int TN = 0;
-            int FP = 0;
-            int FN = 0;
-
-            i = 0;
-
-            while(hasNext && i <nbToTest){
-                i ++;
-                LabeledText example = iterator.next();
-                double prediction = makePrediction(example.text);
-                int predictedClass = classify(prediction);
-                if (predictedClass==1){
-                    if (example.label==1){
-                        TP++;
-                    } else {
-                        FP++;
-                    }
-                } else {
-                    if (example.label==0){
-                        TN++;
-                    } else {
-                        FN++;
-                    }
-                }
+    /**
+     Like makeLearningCurve() above, but the predictions can also be written in binary, to "out + .pred.bin", see
+     OutputSink. Binary predictions take a third of the space of the text and need no formatting. The predictions
+     can also be counted in a histogram, which gives the ROC curve and the metrics at the other thresholds, and be
+     monitored over a sliding window and with exponential decay, at a fixed period.
+
+     The files are written by a background thread, see OutputSink. They are complete when this method returns.
+
+     @param binaryPredictions when this is true, the predictions are written in binary
+     @param scores if not null, counts all the predictions, see ScoreHistogram
+     @param monitor if not null, monitors all the predictions, see WindowedEvaluation
+     @throws java.io.UncheckedIOException if a file could not be written
+     **/
+    public void makeLearningCurve(MailStream mailStream, EvaluationMetric[] evals, String out, int reportingPeriod,
+                                  boolean writeOutAllPredictions, boolean binaryPredictions, ScoreHistogram scores,
+                                  WindowedEvaluation monitor) throws FileNotFoundException {
+
+        OutputSink[] evalWriters = new OutputSink[evals.length];
+        OutputSink predictionWriter = null;
+        Iterator<LabeledText> iterator = null;
+        try {
+            for (int e=0; e< evals.length; e++)
+                evalWriters[e] = new OutputSink(out+"."+evals[e].name());
+            if (writeOutAllPredictions)
+                predictionWriter = OutputSink.predictions(out + (binaryPredictions ? ".pred.bin" : ".pred"), binaryPredictions);
+            DecimalFormat df = new DecimalFormat("0.000");
+
+            int nbToTest = 10;
 
-                // write prediction to file
-                if (writeOutAllPredictions) {
-                    predictionWriter.println(example.label+"\t"+predictedClass+"\t"+prediction);
-                    predictionWriter.flush();
+            System.out.println("Start training/testing");
+
+            iterator = mailStream.iterator();
+            int i;
+
+            boolean hasNext = iterator.hasNext();
+
+            while(hasNext) {
+                ArrayList<LabeledText> buffer = new ArrayList<>(nbToTest);
+
+                ConfusionMatrix confusion = new ConfusionMatrix();
+
+                i = 0;
+
+                while(hasNext && i <nbToTest){
+                    i ++;
+                    LabeledText example = iterator.next();
+                    double prediction = makePrediction(example.text);
+                    int predictedClass = classify(prediction);
+                    confusion.add(example.label, predictedClass);
+
+                    // write prediction to file
+                    if (writeOutAllPredictions)
+                        predictionWriter.writePrediction(example.label, predictedClass, prediction);
+                    if (scores != null)
+                        scores.add(example.label, prediction);
+                    if (monitor != null)
+                        monitor.add(example.label, predictedClass);
+
+                    buffer.add(example);
+                    hasNext = iterator.hasNext();
                 }
+                String outline = "trained with: "+nbExamplesProcessed;
+                for (int e=0; e< evals.length; e++) {
+                    double score = confusion.evaluate(evals[e]);
+                    evalWriters[e].print(nbExamplesProcessed);
+                    evalWriters[e].print('\t');
+                    evalWriters[e].print(score);
+                    evalWriters[e].println();
+                    outline+="\t"+evals[e].name()+": "+df.format(score);
+                }
+                System.out.println(outline);
+
+                updateBatch(buffer);
 
-                buffer.add(example);
-                hasNext = iterator.hasNext();
+                nbToTest = Math.min(reportingPeriod, nbToTest*2);
             }
-            String outline = "trained with: "+nbExamplesProcessed;
-            for (int e=0; e< evals.length; e++) {
-                double score = evals[e].evaluate(TP,FP,TN,FN);
-                evalWriters[e].println(nbExamplesProcessed + "\t" + score);
-                evalWriters[e].flush();
-                outline+="\t"+evals[e].name()+": "+df.format(score);
+        } finally {
+            // close everything, even if one of them fails, and report the first failure
+            RuntimeException error = null;
+            try {
+                if (iterator != null)
+                    MailStream.close(iterator);
+            } catch (RuntimeException e) {
+                error = e;
             }
-            System.out.println(outline);
-
-            for (LabeledText example: buffer){
-                update(example);
+            for (OutputSink writer : evalWriters) {
+                try {
+                    if (writer != null)
+                        writer.close();
+                } catch (RuntimeException e) {
+                    if (error == null)
+                        error = e;
+                }
             }
-
-            nbToTest = Math.min(reportingPeriod, nbToTest*2);
-        }
-        for (int e=0; e< evals.length; e++) {
-            evalWriters[e].close();
+            try {
+                if (predictionWriter != null)
+                    predictionWriter.close();
+            } catch (RuntimeException e) {
+                if (error == null)
+                    error = e;
+            }
+            if (error != null)
+                throw error;
         }
-
     }
 
     /**
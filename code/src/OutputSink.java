@@ -0,0 +1,282 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * This class is an output file that is written by a background thread, for the learning curves and the predictions.
+ *
+ * A PrintWriter that is flushed after every prediction makes a system call for every e-mail on the training thread.
+ * A sink collects the output in a buffer of BUFFER_SIZE bytes instead, and hands the full buffers to a background
+ * thread that writes them to the file, while the training thread goes on in another buffer. At most MAX_BUFFERS
+ * buffers per sink are in use, so a slow disk slows the training down instead of filling the memory. All the sinks
+ * share one background thread, which writes the buffers in the order in which they were handed over.
+ *
+ * The file is only complete after close(), which writes the last buffer and waits for the background thread. An error
+ * of the background thread is thrown by the next call on the sink, as an UncheckedIOException. Text is written one
+ * byte per char, so it must be ASCII; binary values are little endian.
+ *
+ * A file of predictions (see predictions()) has a line "label <tab> predicted class <tab> prediction" per prediction
+ * as text, or in binary: magic (int), version (int) and then the label (byte), the predicted class (byte) and the
+ * prediction (double) of every prediction. The main method prints a binary file as text.
+ */
+public class OutputSink implements Closeable {
+
+    static final int PREDICTIONS_MAGIC = 0x50414442; // "BDAP"
+    static final int PREDICTIONS_VERSION = 1;
+    static final int PREDICTION_SIZE = 10; // bytes per prediction in a binary file
+
+    static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_BUFFERS = 4;
+    private static final String LINE_SEPARATOR = System.lineSeparator(); // as PrintWriter.println()
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(MailStream.daemonThreads("OutputSink"));
+
+    private final String path;
+    private final boolean binary; // only used by writePrediction()
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(MAX_BUFFERS); // written by the background thread
+    private int nbOfBuffers = 0;
+    private ByteBuffer buffer;
+    private final StringBuilder number = new StringBuilder(32); // formats the doubles, as Double.toString()
+    private volatile IOException error = null;
+    private boolean closed = false;
+
+    /**
+     * Creates (or truncates) a file
+     *
+     * @param path The path of the file
+     * @throws FileNotFoundException if the file can not be created, as for a PrintWriter
+     */
+    public OutputSink(String path) throws FileNotFoundException {
+        this(path, false);
+    }
+
+    private OutputSink(String path, boolean binary) throws FileNotFoundException {
+        this.path = path;
+        this.binary = binary;
+        channel = new FileOutputStream(path).getChannel();
+        buffer = nextBuffer();
+    }
+
+    /**
+     * Creates a file of predictions, see writePrediction()
+     *
+     * @param path The path of the file
+     * @param binary If true, the predictions are written in binary, otherwise as text
+     * @throws FileNotFoundException if the file can not be created
+     */
+    public static OutputSink predictions(String path, boolean binary) throws FileNotFoundException {
+        OutputSink sink = new OutputSink(path, binary);
+        if (binary) {
+            sink.writeInt(PREDICTIONS_MAGIC);
+            sink.writeInt(PREDICTIONS_VERSION);
+        }
+        return sink;
+    }
+
+    /**
+     * Writes a prediction to a file of predictions
+     */
+    public void writePrediction(int label, int predictedClass, double prediction) {
+        if (binary) {
+            ensure(PREDICTION_SIZE);
+            buffer.put((byte) label).put((byte) predictedClass).putDouble(prediction);
+        } else {
+            print(label);
+            print('\t');
+            print(predictedClass);
+            print('\t');
+            print(prediction);
+            println();
+        }
+    }
+
+    public void print(char c) {
+        ensure(1);
+        buffer.put((byte) c);
+    }
+
+    public void print(String s) {
+        for (int i = 0; i < s.length(); i++)
+            print(s.charAt(i));
+    }
+
+    public void print(int value) {
+        print((long) value);
+    }
+
+    public void print(long value) {
+        if (value < 0) {
+            print(Long.toString(value));
+            return;
+        }
+        int nbOfDigits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10)
+            nbOfDigits++;
+        ensure(nbOfDigits);
+        int end = buffer.position() + nbOfDigits;
+        for (int i = end - 1; i >= buffer.position(); i--, value /= 10)
+            buffer.put(i, (byte) ('0' + value % 10));
+        buffer.position(end);
+    }
+
+    /**
+     * Prints a double as Double.toString() does
+     */
+    public void print(double value) {
+        number.setLength(0);
+        number.append(value);
+        ensure(number.length());
+        for (int i = 0; i < number.length(); i++)
+            buffer.put((byte) number.charAt(i));
+    }
+
+    public void println() {
+        print(LINE_SEPARATOR);
+    }
+
+    public void writeInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    public void writeDouble(double value) {
+        ensure(8);
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Hands the buffer to the background thread, without waiting until it is written
+     */
+    public void flush() {
+        checkError();
+        if (buffer.position() == 0)
+            return;
+        ByteBuffer full = buffer;
+        buffer = nextBuffer();
+        full.flip();
+        WRITER.execute(() -> write(full));
+    }
+
+    /**
+     * Writes the rest of the output, waits until the whole file is written and closes it
+     *
+     * @throws UncheckedIOException if the file could not be written
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (error == null && buffer.position() > 0) {
+            ByteBuffer last = buffer;
+            last.flip();
+            WRITER.execute(() -> write(last));
+        }
+        Future<?> closing = WRITER.submit(() -> {
+            channel.close();
+            return null;
+        });
+        try {
+            closing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while closing " + path, e);
+        } catch (ExecutionException e) {
+            if (error == null)
+                error = (IOException) e.getCause();
+        }
+        checkError();
+    }
+
+    private void ensure(int size) {
+        if (buffer.remaining() < size)
+            flush();
+    }
+
+    /**
+     * @return An empty buffer: a written one, a new one, or else the next one that the background thread has written
+     */
+    private ByteBuffer nextBuffer() {
+        ByteBuffer next = free.poll();
+        if (next != null)
+            return next;
+        if (nbOfBuffers < MAX_BUFFERS) {
+            nbOfBuffers++;
+            return ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while writing " + path, e);
+        }
+    }
+
+    /**
+     * Writes a full buffer to the file, on the background thread, and frees it
+     */
+    private void write(ByteBuffer full) {
+        try {
+            while (error == null && full.hasRemaining())
+                channel.write(full);
+        } catch (IOException e) {
+            error = e;
+        }
+        full.clear();
+        free.add(full);
+    }
+
+    private void checkError() {
+        if (error != null)
+            throw new UncheckedIOException(path + " could not be written", error);
+    }
+
+    /**
+     * Prints a binary file of predictions as text.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java OutputSink <predictionsPath>");
+            throw new Error("Expected 1 argument, got " + args.length + ".");
+        }
+        try (FileChannel file = FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ)) {
+            ByteBuffer predictions = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if (predictions.remaining() < 8 || predictions.getInt() != PREDICTIONS_MAGIC)
+                throw new IOException(args[0] + " is not a binary file of predictions");
+            int version = predictions.getInt();
+            if (version != PREDICTIONS_VERSION)
+                throw new IOException(args[0] + " has version " + version + ", expected " + PREDICTIONS_VERSION);
+            if (predictions.remaining() % PREDICTION_SIZE != 0)
+                throw new IOException(args[0] + " is truncated");
+
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE));
+            while (predictions.hasRemaining()) {
+                int label = predictions.get();
+                int predictedClass = predictions.get();
+                out.println(label + "\t" + predictedClass + "\t" + predictions.getDouble());
+            }
+            out.flush();
+        }
+    }
+}
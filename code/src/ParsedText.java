@@ -3,6 +3,7 @@
  * Proprietary, do not copy or distribute without permission.
  * Written by Jessa Bekker and Pieter Robberechts, 2020
  */
+import java.util.Arrays;
 import java.util.Set;
 
 
@@ -13,17 +14,43 @@ import java.util.Set;
  * that were extracted from the text, which can be used to learn better models.
  * If you do this, make sure that the classifiers does not require the
  * subclass. It should still be able to operate with n-grams alone.
+ *
+ * A parsed text holds its n-grams as strings, as 64-bit fingerprints (see
+ * NgramHash), or both. The classifiers work on the fingerprints, which are
+ * computed from the strings when the text only has those.
  */
 public class ParsedText {
 
+    /**
+     * The n-grams, or null if the text was parsed into fingerprints only
+     */
     public final Set<String> ngrams;
 
+    private volatile long[] fingerprints; // the sorted, distinct fingerprints of the n-grams
+
     public ParsedText(Set<String> ngrams) {
         this.ngrams = ngrams;
     }
 
+    /**
+     * @param fingerprints The sorted, distinct fingerprints of the n-grams
+     */
+    public ParsedText(long[] fingerprints) {
+        this.ngrams = null;
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * @return The sorted, distinct fingerprints of the n-grams. Do not modify the array.
+     */
+    public long[] getFingerprints() {
+        if (fingerprints == null)
+            fingerprints = NgramHash.fingerprints(ngrams);
+        return fingerprints;
+    }
+
     @Override
     public String toString(){
-        return ngrams.toString();
+        return ngrams != null ? ngrams.toString() : Arrays.toString(fingerprints);
     }
 }
@@ -6,8 +6,6 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Random;
-import java.util.Set;
 
 
 /**
@@ -20,12 +18,23 @@ public class PerceptronCountMinSketch extends OnlineTextClassifier{
     private int nbOfBuckets;
     private double learningRate;
     private double bias;
-    private int prime;
     private int seed;
-    private int[][] hashAB;		//hashAB[h][0] and hashAB[h][1] are the resp. constants 'a' and 'b' used in universal hashing for the h'th hash function. 
+    private SketchHashing hashing;	// derives the bucket of an n-gram for every hash function from one 64-bit hash
+    private int[] rowIndices;		// scratch buffer for the buckets of one n-gram
     
     private double sum_error;
-    private double[][] weights; // weights[h][i]: The h'th weight estimate for n-grams that hash to value i for the h'th hash function
+    private DoubleStorage[] weights; // weights[h].get(i): The h'th weight estimate for n-grams that hash to value i for the h'th hash function
+
+    // scratch for the non-zero entries of the feature vector of a mail (see findFeatures)
+    private long[] cells = new long[1024]; // cells[f] = i * nbOfHashes + h: the f'th non-zero entry is feature_vector[h][i]
+    private int[] cellCounts = new int[1024]; // cellCounts[f]: the value of the f'th non-zero entry
+    private int aggregation = MEAN; // how the weight estimates of the hash functions are combined, see setAggregation()
+    private double[] estimates; // scratch: the weight estimates of one n-gram
+
+    // the ways to combine the weight estimates of the hash functions, see setAggregation()
+    static final int TRUNCATED_MEAN = 0;
+    static final int MEAN = 1;
+    static final int MEDIAN = 2;
 
 
     /* FILL IN HERE */
@@ -43,33 +52,7 @@ public class PerceptronCountMinSketch extends OnlineTextClassifier{
      * @param learningRate The size of the updates of the weights
      */
     public PerceptronCountMinSketch(int nbOfHashes, int logNbOfBuckets, double learningRate){
-        this.nbOfHashes = nbOfHashes;
-        this.logNbOfBuckets=logNbOfBuckets;
-        this.learningRate = learningRate;
-        this.threshold = 0;
-
-        this.nbOfBuckets=((int) Math.pow(2, logNbOfBuckets));
-        this.sum_error = 0;
-        bias = 0;
-        weights = new double[this.nbOfHashes][this.nbOfBuckets];
-        this.prime = Primes.findLeastPrimeNumber(this.nbOfBuckets);
-    	this.seed = (int) Math.random() * 1000;
-    	
-    	// Init hashAB
-    	hashAB = new int[this.nbOfHashes][2];
-    	Random rand = new Random();
-    	for (int i = 0; i < this.nbOfHashes; i++) {
-    		hashAB[i][0] = rand.nextInt(this.prime - 1) + 1; // a != 0
-    		hashAB[i][1] = rand.nextInt(this.prime);
-    	}
-        
-        // here we initialize the weights to random values between 0 and 1
-        for (int hash_i = 0; hash_i < this.nbOfHashes; hash_i++) {
-            for (int j = 0; j < this.nbOfBuckets; j++) {
-                weights[hash_i][j] = 0;//Math.random();
-            }   
-        }
-
+        this(nbOfHashes, logNbOfBuckets, learningRate, 0);
     }
     
         /**
@@ -86,6 +69,50 @@ public class PerceptronCountMinSketch extends OnlineTextClassifier{
      * @param threshold The threshold for a positive prediction. Useful for ROC curve
      */
     public PerceptronCountMinSketch(int nbOfHashes, int logNbOfBuckets, double learningRate, double threshold){
+        this(nbOfHashes, logNbOfBuckets, learningRate, threshold, DEFAULT_SEED);
+    }
+
+    /**
+     * Initialize the perceptron classifier
+     *
+     * @param nbOfHashes The number of hash functions in the count-min sketch
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^NbOfBuckets-1]
+     * @param learningRate The size of the updates of the weights
+     * @param threshold The threshold for a positive prediction. Useful for ROC curve
+     * @param seed The seed of the hash functions
+     */
+    public PerceptronCountMinSketch(int nbOfHashes, int logNbOfBuckets, double learningRate, double threshold, int seed){
+        this(nbOfHashes, logNbOfBuckets, learningRate, threshold, seed, false);
+    }
+
+    /**
+     * Initialize the perceptron classifier
+     *
+     * @param nbOfHashes The number of hash functions in the count-min sketch
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^NbOfBuckets-1]
+     * @param learningRate The size of the updates of the weights
+     * @param threshold The threshold for a positive prediction. Useful for ROC curve
+     * @param seed The seed of the hash functions
+     * @param offHeap If true, the weights are stored outside the Java heap, see DoubleStorage.offHeap()
+     */
+    public PerceptronCountMinSketch(int nbOfHashes, int logNbOfBuckets, double learningRate, double threshold, int seed,
+                                    boolean offHeap){
+        // here we initialize the weights to 0
+        this(nbOfHashes, logNbOfBuckets, learningRate, threshold, seed, zeroWeights(nbOfHashes, 1 << logNbOfBuckets, offHeap));
+    }
+
+    private static DoubleStorage[] zeroWeights(int nbOfHashes, int nbOfBuckets, boolean offHeap) {
+        DoubleStorage[] weights = new DoubleStorage[nbOfHashes];
+        for (int hash_i = 0; hash_i < nbOfHashes; hash_i++)
+            weights[hash_i] = DoubleStorage.allocate(nbOfBuckets, offHeap);
+        return weights;
+    }
+
+    /**
+     * Initialize the perceptron classifier with the given weights
+     */
+    private PerceptronCountMinSketch(int nbOfHashes, int logNbOfBuckets, double learningRate, double threshold, int seed,
+                                     DoubleStorage[] weights){
         this.nbOfHashes = nbOfHashes;
         this.logNbOfBuckets=logNbOfBuckets;
         this.learningRate = learningRate;
@@ -94,14 +121,44 @@ public class PerceptronCountMinSketch extends OnlineTextClassifier{
         this.nbOfBuckets=((int) Math.pow(2, logNbOfBuckets));
         this.sum_error = 0;
         bias = 0;
-        weights = new double[this.nbOfHashes][this.nbOfBuckets];
-        // here we initialize the weights to random values between 0 and 1
-        for (int hash_i = 0; hash_i < this.nbOfHashes; hash_i++) {
-            for (int j = 0; j < this.nbOfBuckets; j++) {
-                weights[hash_i][j] = 0;//Math.random();
-            }   
-        }
+        this.weights = weights;
+    	this.seed = seed;
+    	hashing = new SketchHashing(this.nbOfHashes, this.logNbOfBuckets, this.seed);
+    	rowIndices = new int[this.nbOfHashes];
+    	estimates = new double[this.nbOfHashes];
+    }
+
+    /**
+     * Sets how the weight estimates of the hash functions are combined into the weight of an n-gram:
+     *   MEAN (the default): per n-gram, the mean of its estimates, summed in a double
+     *   MEDIAN: per n-gram, the median of its estimates (see findMedianSketch), as a count-median sketch
+     *   TRUNCATED_MEAN: per bucket, the mean over the hash functions, summed into an int as findMeanSketch does. This
+     *                   is the original computation, only kept to reproduce it: with a learning rate below 1 every
+     *                   term truncates to 0, so the perceptron only learns its bias.
+     * The updates are the same for all of them.
+     *
+     * @param aggregation TRUNCATED_MEAN, MEAN or MEDIAN
+     */
+    public void setAggregation(int aggregation) {
+        if (aggregation < TRUNCATED_MEAN || aggregation > MEDIAN)
+            throw new IllegalArgumentException("Unknown aggregation " + aggregation);
+        this.aggregation = aggregation;
+    }
 
+    /**
+     * @param name "truncated", "mean" or "median"
+     * @return The aggregation with that name, see setAggregation()
+     */
+    static int aggregation(String name) {
+        switch (name) {
+            case "truncated":
+                return TRUNCATED_MEAN;
+            case "mean":
+                return MEAN;
+            case "median":
+                return MEDIAN;
+        }
+        throw new IllegalArgumentException("Unknown aggregation " + name);
     }
 
     /**
@@ -117,20 +174,24 @@ public class PerceptronCountMinSketch extends OnlineTextClassifier{
      * @return the hash value of the h'th hash function for string str
      */
     private int hash(String str, int h){
+        return hash(NgramHash.fingerprint(str), h);
+    }
+
+    /**
+     * Calculate the hash value of the h'th hash function for the fingerprint of an n-gram
+     *
+     * @param fingerprint The fingerprint of the n-gram (see NgramHash)
+     * @param h The number of the hash function to use.
+     * @return the hash value of the h'th hash function for the n-gram
+     */
+    private int hash(long fingerprint, int h){
         int v;
 
-        if (h < 0 || h >= nbOfBuckets){
+        if (h < 0 || h >= nbOfHashes){
         	v = -1;
         	System.out.println("Failure in NB CMS hash(): h out of range");
         } else {
-        	
-        	int x = MurmurHash.hash32(str, seed);
-        	int a = hashAB[h][0];
-        	int b = hashAB[h][1];
-        	
-        	int y = HelperFunctions.posMod(a*x + b, prime);
-        	v = HelperFunctions.posMod(y, nbOfBuckets);
-        	
+        	v = hashing.rowIndex(fingerprint, h);
         }
         	
 
@@ -148,38 +209,14 @@ public class PerceptronCountMinSketch extends OnlineTextClassifier{
         super.update(labeledText);
 
         int feature_label = labeledText.label;
-        int gradient_direction;
         if (feature_label == 0) {
-            gradient_direction = -1;
             feature_label = -1;
-        } else {
-            gradient_direction = 1;
         }
         
-        int hashValue;
-
-        double[][] feature_vector = new double[this.nbOfHashes][this.nbOfBuckets];
-        Set<String> feature_ngrams = labeledText.text.ngrams;
-         
-        for (int hash_i = 0; hash_i < this.nbOfHashes; hash_i++) {
-            for (String ngram: feature_ngrams) {
-                hashValue = hash(ngram, hash_i);
-                feature_vector[hash_i][hashValue] += 1;
-            } 
-        }
+        long[] feature_ngrams = labeledText.text.getFingerprints();
+        int nbOfCells = findFeatures(feature_ngrams);
 
-        
-        //double[][] weighted_sum_mat = new double[this.nbOfHashes][this.nbOfBuckets];
-        double weighted_sum = 0;
-        for (int feature_i = 0; feature_i < this.nbOfBuckets; feature_i ++) {
-            double[] weighted_sum_vec = new double[this.nbOfHashes];
-            // here we calculate the x[i] * w[i] for each feature component for each h
-            // then we take the median across all h to get a final x[i] * w[i] for our weighted sum
-            for (int hash_i = 0; hash_i < this.nbOfHashes; hash_i++) {
-                weighted_sum_vec[hash_i] = feature_vector[hash_i][feature_i] * this.weights[hash_i][feature_i];
-            }
-            weighted_sum += findMeanSketch(weighted_sum_vec, this.nbOfHashes);
-        }
+        double weighted_sum = weightedSum(feature_ngrams, nbOfCells);
         weighted_sum += bias;
 
         //System.out.println(Double.toString(weighted_sum));
@@ -192,23 +229,120 @@ public class PerceptronCountMinSketch extends OnlineTextClassifier{
         double error = feature_label - prediction;
         
         this.sum_error += Math.pow(error, 2);
-        double lambda = 0.01;
-        int m = 1;
-        // updating the weights, with an L2 penalty
-        /*double[] L2_regularization_penalty = new double[this.nbOfHashes];
-        for (int hash_i = 0; hash_i < this.nbOfHashes; hash_i++) {
-            for (int weight_i = 0; weight_i < this.nbOfBuckets; weight_i++) {
-                L2_regularization_penalty[hash_i] +=  Math.pow(weights[hash_i][weight_i], 2);
-            }  
-            L2_regularization_penalty[hash_i] *= lambda / (2 * m);
-        }*/
         
+        // updating the weights
         bias = bias + this.learningRate * error;
-        for (int hash_i = 0; hash_i < this.nbOfHashes; hash_i++) {
-            for (int feature_i = 0; feature_i < this.nbOfBuckets; feature_i++) {
-                weights[hash_i][feature_i] = weights[hash_i][feature_i] + this.learningRate * error * feature_vector[hash_i][feature_i];
-            }
+        // the weights of the zero entries of the feature vector do not change
+        for (int f = 0; f < nbOfCells; f++) {
+            int feature_i = (int) (cells[f] / this.nbOfHashes);
+            int hash_i = (int) (cells[f] % this.nbOfHashes);
+            weights[hash_i].set(feature_i, weights[hash_i].get(feature_i) + this.learningRate * error * cellCounts[f]);
+        }
+    }
+
+    /**
+     * Finds the non-zero entries of the feature vector of a mail: the buckets of its n-grams for every hash function
+     *
+     * @param ngrams The fingerprints of the n-grams of the mail
+     * @return The number of non-zero entries, which are put in cells, ordered by bucket and then by hash function,
+     *         with their values in cellCounts
+     */
+    private int findFeatures(long[] ngrams) {
+        int nbOfCells = ngrams.length * this.nbOfHashes;
+        if (cells.length < nbOfCells) {
+            cells = new long[Math.max(nbOfCells, 2 * cells.length)];
+            cellCounts = new int[cells.length];
+        }
+        int c = 0;
+        for (long ngram: ngrams) {
+            hashing.rowIndices(ngram, rowIndices);
+            for (int hash_i = 0; hash_i < this.nbOfHashes; hash_i++)
+                cells[c++] = (long) rowIndices[hash_i] * this.nbOfHashes + hash_i;
+        }
+        return HelperFunctions.countDistinct(cells, nbOfCells, cellCounts);
+    }
+
+    /**
+     * Calculates the weighted sum of the feature vector with the aggregation of setAggregation()
+     *
+     * @param ngrams The fingerprints of the n-grams of the mail
+     * @param nbOfCells The number of non-zero entries found by findFeatures
+     * @return The weighted sum, without the bias
+     */
+    private double weightedSum(long[] ngrams, int nbOfCells) {
+        if (aggregation == TRUNCATED_MEAN)
+            return truncatedSum(nbOfCells);
+        if (aggregation == MEAN) {
+            // the sum of the means of the n-grams, regrouped per cell: every cell counts once per n-gram in it
+            double weighted_sum = 0;
+            for (int f = 0; f < nbOfCells; f++)
+                weighted_sum += cellCounts[f] * this.weights[(int) (cells[f] % this.nbOfHashes)].get((int) (cells[f] / this.nbOfHashes));
+            return weighted_sum / this.nbOfHashes;
+        }
+        double weighted_sum = 0;
+        for (long ngram: ngrams) {
+            hashing.rowIndices(ngram, rowIndices);
+            for (int hash_i = 0; hash_i < this.nbOfHashes; hash_i++)
+                estimates[hash_i] = this.weights[hash_i].get(rowIndices[hash_i]);
+            weighted_sum += findMedianSketch(estimates, this.nbOfHashes);
+        }
+        return weighted_sum;
+    }
+
+    /**
+     * Calculates the weighted sum of the feature vector like the dense computation: per bucket, the mean over the hash
+     * functions of x[i] * w[i] (see findMeanSketch), summed in the order of the buckets. Buckets without n-grams add 0.
+     *
+     * @param nbOfCells The number of non-zero entries found by findFeatures
+     * @return The weighted sum, without the bias
+     */
+    private double truncatedSum(int nbOfCells) {
+        double weighted_sum = 0;
+        int f = 0;
+        while (f < nbOfCells) {
+            long feature_i = cells[f] / this.nbOfHashes;
+            // findMeanSketch sums into an int, so the sum is truncated after every hash function
+            int sum = 0;
+            for (; f < nbOfCells && cells[f] / this.nbOfHashes == feature_i; f++)
+                sum += cellCounts[f] * this.weights[(int) (cells[f] % this.nbOfHashes)].get((int) feature_i);
+            weighted_sum += (double) sum / (double) this.nbOfHashes;
         }
+        return weighted_sum;
+    }
+
+    @Override
+    protected void writeModel(ModelSnapshot.Writer out) throws IOException {
+        out.writeInt(nbOfHashes);
+        out.writeInt(logNbOfBuckets);
+        out.writeInt(seed);
+        out.writeDouble(learningRate);
+        out.writeDouble(bias);
+        out.writeDouble(sum_error);
+        out.writeInt(aggregation);
+        for (DoubleStorage row : weights)
+            out.writeDoubles(row);
+    }
+
+    /**
+     * Reads the parameters that writeModel() wrote, see OnlineTextClassifier.load()
+     */
+    static PerceptronCountMinSketch readModel(ModelSnapshot.Reader in) throws IOException {
+        int nbOfHashes = in.readInt();
+        int logNbOfBuckets = in.readInt();
+        int seed = in.readInt();
+        double learningRate = in.readDouble();
+        double bias = in.readDouble();
+        double sum_error = in.readDouble();
+        int aggregation = in.readInt();
+        DoubleStorage[] weights = new DoubleStorage[nbOfHashes];
+        for (int hash_i = 0; hash_i < nbOfHashes; hash_i++)
+            weights[hash_i] = in.readDoubles(1 << logNbOfBuckets);
+        PerceptronCountMinSketch perceptron = new PerceptronCountMinSketch(nbOfHashes, logNbOfBuckets, learningRate, 0,
+                seed, weights);
+        perceptron.bias = bias;
+        perceptron.sum_error = sum_error;
+        perceptron.setAggregation(aggregation);
+        return perceptron;
     }
 
     /**
@@ -225,30 +359,10 @@ public class PerceptronCountMinSketch extends OnlineTextClassifier{
     @Override
     public double makePrediction(ParsedText text) {
         double pr = 0;
-        int hashValue;
-
-        double[][] feature_vector = new double[this.nbOfHashes][this.nbOfBuckets];
-        Set<String> feature_ngrams = text.ngrams;
-         
-        for (int hash_i = 0; hash_i < this.nbOfHashes; hash_i++) {
-            for (String ngram: feature_ngrams) {
-                hashValue = hash(ngram, hash_i);
-                feature_vector[hash_i][hashValue] += 1;
-            } 
-        }
+        long[] feature_ngrams = text.getFingerprints();
+        int nbOfCells = aggregation == MEDIAN ? 0 : findFeatures(feature_ngrams);
 
-        
-        //double[][] weighted_sum_mat = new double[this.nbOfHashes][this.nbOfBuckets];
-        double weighted_sum = 0;
-        for (int feature_i = 0; feature_i < this.nbOfBuckets; feature_i ++) {
-            double[] weighted_sum_vec = new double[this.nbOfHashes];
-            // here we calculate the x[i] * w[i] for each feature component for each h
-            // then we take the median across all h to get a final x[i] * w[i] for our weighted sum
-            for (int hash_i = 0; hash_i < this.nbOfHashes; hash_i++) {
-                weighted_sum_vec[hash_i] = feature_vector[hash_i][feature_i] * this.weights[hash_i][feature_i];
-            }
-            weighted_sum += findMeanSketch(weighted_sum_vec, this.nbOfHashes);
-        }
+        double weighted_sum = weightedSum(feature_ngrams, nbOfCells);
         weighted_sum += bias;
 
         //pr = sigmoid_activation(weighted_sum);
@@ -292,14 +406,70 @@ public class PerceptronCountMinSketch extends OnlineTextClassifier{
         return (double)sum / (double)n; 
     }
 
+    /**
+     * Checks the sparse TRUNCATED_MEAN computation against the dense computation of the original class: trains the
+     * perceptron prequentially on a stream next to dense copies of its feature vectors and weights, updated like the
+     * original update(), and compares every prediction with the dense one (findMeanSketch per bucket) and the weights
+     * at the end.
+     *
+     * @return The number of predictions and weights that differ
+     */
+    static long checkDense(MailStream stream, PerceptronCountMinSketch perceptron) {
+        perceptron.setAggregation(TRUNCATED_MEAN);
+        int nbOfHashes = perceptron.nbOfHashes;
+        int nbOfBuckets = perceptron.nbOfBuckets;
+        double[][] weights = new double[nbOfHashes][nbOfBuckets];
+        double bias = 0;
+        long nbOfMails = 0;
+        long nbOfDifferences = 0;
+
+        for (LabeledText example : stream) {
+            double[][] feature_vector = new double[nbOfHashes][nbOfBuckets];
+            for (int hash_i = 0; hash_i < nbOfHashes; hash_i++)
+                for (long ngram : example.text.getFingerprints())
+                    feature_vector[hash_i][perceptron.hash(ngram, hash_i)] += 1;
+
+            double weighted_sum = 0;
+            for (int feature_i = 0; feature_i < nbOfBuckets; feature_i++) {
+                double[] weighted_sum_vec = new double[nbOfHashes];
+                for (int hash_i = 0; hash_i < nbOfHashes; hash_i++)
+                    weighted_sum_vec[hash_i] = feature_vector[hash_i][feature_i] * weights[hash_i][feature_i];
+                weighted_sum += findMeanSketch(weighted_sum_vec, nbOfHashes);
+            }
+            weighted_sum += bias;
+
+            nbOfMails++;
+            if (Double.compare(weighted_sum, perceptron.makePrediction(example.text)) != 0)
+                nbOfDifferences++;
+
+            int feature_label = example.label == 0 ? -1 : 1;
+            int prediction = perceptron.classify(weighted_sum) == 0 ? -1 : 1;
+            double error = feature_label - prediction;
+            bias = bias + perceptron.learningRate * error;
+            for (int hash_i = 0; hash_i < nbOfHashes; hash_i++)
+                for (int feature_i = 0; feature_i < nbOfBuckets; feature_i++)
+                    weights[hash_i][feature_i] = weights[hash_i][feature_i] + perceptron.learningRate * error * feature_vector[hash_i][feature_i];
+            perceptron.update(example);
+        }
+
+        long nbOfWeightDifferences = 0;
+        for (int hash_i = 0; hash_i < nbOfHashes; hash_i++)
+            for (int feature_i = 0; feature_i < nbOfBuckets; feature_i++)
+                if (Double.compare(weights[hash_i][feature_i], perceptron.weights[hash_i].get(feature_i)) != 0)
+                    nbOfWeightDifferences++;
+        System.out.println(nbOfMails + " e-mails, " + nbOfDifferences + " predictions and " + nbOfWeightDifferences
+                + " of " + (long) nbOfHashes * nbOfBuckets + " weights that differ from the dense computation");
+        return nbOfDifferences + nbOfWeightDifferences;
+    }
+
     /**
      * This runs your code.
      */
     public static void main(String[] args) throws IOException {
 
         if (args.length < 8) {
-            System.err.println("Usage: java PerceptronCountMinSketch <indexPath> <stopWordsPath> <logNbOfBuckets> <nbOfHashes> <learningRate> <outPath> <reportingPeriod> <maxN> [-writeOutAllPredictions]");
-            throw new Error("Expected 8 or 9 arguments, got " + args.length + ".");
+            System.err.println("Usage: java PerceptronCountMinSketch <indexPath> <stopWordsPath> <logNbOfBuckets> <nbOfHashes> <learningRate> <outPath> <reportingPeriod> <maxN> [-writeOutAllPredictions] [-binaryPredictions] [-roc] [-window=<n> [-halfLife=<n>] [-monitorPeriod=<n>]] [-parseThreads=<n>] [-hashNgrams] [-seed=<n>] [-save=<modelPath>] [-offHeap] [-aggregation=mean|median|truncated] [-checkDense]");
+            throw new Error("Expected at least 8 arguments, got " + args.length + ".");
         }
         try {
             // parse input
@@ -311,13 +481,32 @@ public class PerceptronCountMinSketch extends OnlineTextClassifier{
             String out = args[5];
             int reportingPeriod = Integer.parseInt(args[6]);
             int n = Integer.parseInt(args[7]);
-            boolean writeOutAllPredictions = args.length>8 && args[8].equals("-writeOutAllPredictions");
+            boolean writeOutAllPredictions = HelperFunctions.hasFlag(args, 8, "-writeOutAllPredictions");
+            boolean binaryPredictions = HelperFunctions.hasFlag(args, 8, "-binaryPredictions");
+            boolean roc = HelperFunctions.hasFlag(args, 8, "-roc");
+            int windowSize = HelperFunctions.getIntOption(args, 8, "-window", 0);
+            int halfLife = HelperFunctions.getIntOption(args, 8, "-halfLife", windowSize);
+            int monitorPeriod = HelperFunctions.getIntOption(args, 8, "-monitorPeriod", reportingPeriod);
+            int nbOfParseThreads = HelperFunctions.getIntOption(args, 8, "-parseThreads", 1);
+            boolean hashNgrams = HelperFunctions.hasFlag(args, 8, "-hashNgrams");
+            int seed = HelperFunctions.getIntOption(args, 8, "-seed", DEFAULT_SEED);
+            boolean offHeap = HelperFunctions.hasFlag(args, 8, "-offHeap");
+            String modelPath = HelperFunctions.getStringOption(args, 8, "-save", null);
+            int aggregation = aggregation(HelperFunctions.getStringOption(args, 8, "-aggregation", "mean"));
+            boolean checkDense = HelperFunctions.hasFlag(args, 8, "-checkDense");
 
-            // initialize e-mail stream
-            MailStream stream = new MailStream(indexPath, new EmlParser(stopWordsPath,n));
+            // initialize e-mail stream (an index or a compiled corpus)
+            MailStream stream = MailStream.open(indexPath, stopWordsPath, n, nbOfParseThreads, hashNgrams);
 
             // initialize learner
-            PerceptronCountMinSketch perceptron = new PerceptronCountMinSketch(nbOfHashes ,logNbOfBuckets, learningRate);
+            PerceptronCountMinSketch perceptron = new PerceptronCountMinSketch(nbOfHashes ,logNbOfBuckets, learningRate, 0, seed, offHeap);
+            perceptron.setAggregation(aggregation);
+            if (checkDense) {
+                // no learning curve, only the check
+                if (checkDense(stream, perceptron) != 0)
+                    throw new Error("The sparse computation differs from the dense one");
+                return;
+            }
 
             // generate output for the learning curve
             EvaluationMetric[] evaluationMetrics = new EvaluationMetric[5]; //ADD AT LEAST TWO MORE EVALUATION METRICS
@@ -326,7 +515,19 @@ public class PerceptronCountMinSketch extends OnlineTextClassifier{
             evaluationMetrics[2] = new Precision();
             evaluationMetrics[3] = new F1Score();
             evaluationMetrics[4] = new BalancedAccuracy();
-            perceptron.makeLearningCurve(stream, evaluationMetrics, out+".pcms", reportingPeriod, writeOutAllPredictions);
+            ScoreHistogram scores = roc ? new ScoreHistogram() : null;
+            WindowedEvaluation monitor = windowSize > 0
+                    ? new WindowedEvaluation(evaluationMetrics, windowSize, halfLife, monitorPeriod, out+".pcms") : null;
+            try {
+                perceptron.makeLearningCurve(stream, evaluationMetrics, out+".pcms", reportingPeriod, writeOutAllPredictions, binaryPredictions, scores, monitor);
+            } finally {
+                if (monitor != null)
+                    monitor.close();
+            }
+            if (roc)
+                scores.writeCurves(out+".pcms", evaluationMetrics);
+            if (modelPath != null)
+                perceptron.save(modelPath);
 
         } catch (FileNotFoundException e) {
             System.err.println(e.toString());
@@ -5,8 +5,7 @@
  */
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.DoubleBuffer;
 
 
 /**
@@ -89,11 +88,20 @@ public class PerceptronL2RegFeatureHashing extends OnlineTextClassifier{
      */
     public int hash(String str){
     	
-    	int v = HelperFunctions.posMod(MurmurHash.hash32(str, seed), nbOfBuckets);
-        return v;
+    	return hash(NgramHash.fingerprint(str));
         
     }
 
+    /**
+     * Calculate the hash value for the fingerprint of an n-gram
+     *
+     * @param fingerprint The fingerprint of the n-gram (see NgramHash)
+     * @return the hash value, in the range [0,2^NbOfBuckets-1]
+     */
+    public int hash(long fingerprint){
+    	return (int) NgramHash.mix(fingerprint, seed) & (nbOfBuckets - 1);
+    }
+
 
     /**
      * This method will update the parameters of your model using the incoming mail.
@@ -118,13 +126,13 @@ public class PerceptronL2RegFeatureHashing extends OnlineTextClassifier{
         int hashValue;
 
         double[] feature_vector = new double[this.nbOfBuckets];
-        Set<String> feature_ngrams = labeledText.text.ngrams;
+        long[] feature_ngrams = labeledText.text.getFingerprints();
 
         for (int i = 0; i < this.nbOfBuckets; i++) {
             feature_vector[i] = 0;
         }
         
-        for (String ngram: feature_ngrams) {
+        for (long ngram: feature_ngrams) {
             hashValue = hash(ngram);
             feature_vector[hashValue] += 1;
         }
@@ -184,6 +192,34 @@ public class PerceptronL2RegFeatureHashing extends OnlineTextClassifier{
     public static double linear_activation(double x) {
         return x;
     }
+
+    @Override
+    protected void writeModel(ModelSnapshot.Writer out) throws IOException {
+        out.writeInt(logNbOfBuckets);
+        out.writeInt(seed);
+        out.writeDouble(learningRate);
+        out.writeDouble(bias);
+        out.writeDouble(sum_error);
+        DoubleStorage copy = DoubleStorage.onHeap(nbOfBuckets); // the snapshot writes storages, not arrays
+        copy.set(0, DoubleBuffer.wrap(weights), nbOfBuckets);
+        out.writeDoubles(copy);
+    }
+
+    /**
+     * Reads the parameters that writeModel() wrote, see OnlineTextClassifier.load(). The weights are copied into
+     * the heap, also when the snapshot is mapped.
+     */
+    static PerceptronL2RegFeatureHashing readModel(ModelSnapshot.Reader in) throws IOException {
+        int logNbOfBuckets = in.readInt();
+        int seed = in.readInt();
+        double learningRate = in.readDouble();
+        PerceptronL2RegFeatureHashing perceptron = new PerceptronL2RegFeatureHashing(logNbOfBuckets, learningRate);
+        perceptron.seed = seed;
+        perceptron.bias = in.readDouble();
+        perceptron.sum_error = in.readDouble();
+        in.readDoubles(perceptron.nbOfBuckets).get(0, DoubleBuffer.wrap(perceptron.weights), perceptron.nbOfBuckets);
+        return perceptron;
+    }
     
     /**
      * Uses the current model to make a prediction about the incoming e-mail belonging to class "1" (spam)
@@ -202,9 +238,9 @@ public class PerceptronL2RegFeatureHashing extends OnlineTextClassifier{
         int hashValue;
 
         double[] feature_vector = new double[this.nbOfBuckets];
-        Set<String> feature_ngrams = text.ngrams;
+        long[] feature_ngrams = text.getFingerprints();
         
-        for (String ngram: feature_ngrams) {
+        for (long ngram: feature_ngrams) {
             hashValue = hash(ngram);
             feature_vector[hashValue] += 1;
         }
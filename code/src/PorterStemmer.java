@@ -366,6 +366,18 @@ class PorterStemmer
 
     }
 
+    /** Stems the word in w[offset..offset+wLen-1] without allocating. The word
+     * is lower-cased character by character, like stem(String) does for the
+     * ASCII words of the tokenizer. The result is in getResultBuffer() and
+     * getResultLength().
+     */
+    public void stem(char[] w, int offset, int wLen)
+    {  if (wLen >= b.length) b = new char[wLen+INC];
+        for (int c = 0; c < wLen; c++) b[c] = Character.toLowerCase(w[offset+c]);
+        i = wLen;
+        stem();
+    }
+
     /** Test program for demonstrating the PorterStemmer.  It reads text from a
      * a list of files, stems each word, and writes the result to standard
      * output. Note that the word stemmed is expected to be in lower case:
@@ -0,0 +1,194 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.FileNotFoundException;
+
+
+/**
+ * This class is a histogram of the predictions of a classifier per class, to evaluate it at every threshold at once.
+ *
+ * The metrics of makeLearningCurve() only see the confusion matrix at the threshold of the classifier. With the
+ * histogram of the predictions of the spam and of the ham, the confusion matrix at any threshold follows from one
+ * run: so do the ROC curve, the area under it (AUC), the precision-recall curve and the metrics at every threshold.
+ *
+ * The predictions of the naive Bayes classifiers are probabilities down to 1e-300, and those of the perceptrons have
+ * no bounds, so the buckets follow the floating point numbers: 2^MANTISSA_BITS buckets per power of two, of either
+ * sign, from 2^MIN_EXPONENT to 2^MAX_EXPONENT, and a bucket for all the larger and one for all the smaller values of
+ * either sign. A bucket has two counts: of the predictions on its lower edge and of those above it, so that the exact
+ * 0's and 1's of naive Bayes do not tie with the predictions just above them. That is 2 classes x 278021 buckets x 2
+ * counts, 4.4 MB, whatever the range of the predictions. A threshold is resolved to 1/128 of its power of two. The
+ * confusion matrix is exact at the thresholds on the lower edge of a bucket, which are the multiples of 2^(e-7) in
+ * [2^e, 2^(e+1)) and their opposites for every e, such as 0, 0.5 and -1.
+ */
+public class ScoreHistogram {
+
+    static final int MANTISSA_BITS = 7;
+    static final int MIN_EXPONENT = -1022; // the smallest normal double, the probabilities of naive Bayes go down to it
+    static final int MAX_EXPONENT = 64;
+
+    private static final int SHIFT = 52 - MANTISSA_BITS;
+    private static final int LOW = (MIN_EXPONENT + 1023) << MANTISSA_BITS; // the key of 2^MIN_EXPONENT
+    private static final int HIGH = (MAX_EXPONENT + 1023) << MANTISSA_BITS; // the key of 2^MAX_EXPONENT
+    private static final int NB_OF_SIGNED_BUCKETS = HIGH - LOW + 2; // the buckets of either sign
+    static final int NB_OF_BUCKETS = 1 + 2 * NB_OF_SIGNED_BUCKETS; // bucket 0 holds the NaNs, they are never positive
+
+    // the predictions of each class: in bucket b, counts[c][2b] on its lower edge and counts[c][2b+1] above it
+    private final int[][] counts = new int[2][2 * NB_OF_BUCKETS];
+    private final long[] totals = new long[2];
+
+    /**
+     * Counts a prediction
+     *
+     * @param label The true class, 0 or 1
+     * @param prediction The prediction of the classifier, positive if it is larger than the threshold
+     */
+    public void add(int label, double prediction) {
+        int b = bucket(prediction);
+        counts[label][prediction == lowerEdge(b) ? 2 * b : 2 * b + 1]++;
+        totals[label]++;
+    }
+
+    /**
+     * Adds the predictions of another histogram
+     */
+    public void add(ScoreHistogram other) {
+        for (int c = 0; c < 2; c++) {
+            for (int b = 0; b < 2 * NB_OF_BUCKETS; b++)
+                counts[c][b] += other.counts[c][b];
+            totals[c] += other.totals[c];
+        }
+    }
+
+    /**
+     * @return The number of predictions of a class
+     */
+    public long getTotal(int label) {
+        return totals[label];
+    }
+
+    /**
+     * @param threshold A threshold
+     * @return The contingency table at the threshold, as {TP, FP, TN, FN}
+     */
+    public int[] confusionMatrix(double threshold) {
+        // the predictions above the lower edge of the bucket of the threshold are taken to be above the threshold
+        int from = Double.isNaN(threshold) ? 2 * NB_OF_BUCKETS : 2 * bucket(threshold) + 1;
+        int TP = 0;
+        int FP = 0;
+        for (int b = from; b < 2 * NB_OF_BUCKETS; b++) {
+            TP += counts[1][b];
+            FP += counts[0][b];
+        }
+        return new int[]{TP, FP, (int) totals[0] - FP, (int) totals[1] - TP};
+    }
+
+    /**
+     * @return The value of a metric at a threshold
+     */
+    public double evaluate(EvaluationMetric metric, double threshold) {
+        int[] matrix = confusionMatrix(threshold);
+        return metric.evaluate(matrix[0], matrix[1], matrix[2], matrix[3]);
+    }
+
+    /**
+     * The area under the ROC curve: the probability that a spam gets a higher prediction than a ham. The predictions
+     * in the same bucket count as ties, for half.
+     *
+     * @return The AUC, or NaN without the predictions of both classes
+     */
+    public double auc() {
+        if (totals[0] == 0 || totals[1] == 0)
+            return Double.NaN;
+        double area = 0;
+        long hamBelow = totals[0];
+        for (int b = 2 * NB_OF_BUCKETS - 1; b >= 0; b--) {
+            hamBelow -= counts[0][b];
+            area += counts[1][b] * (hamBelow + 0.5 * counts[0][b]);
+        }
+        return area / totals[0] / totals[1];
+    }
+
+    /**
+     * Writes the curves to files:
+     *   out.roc has the lines "threshold <tab> false positive rate <tab> true positive rate",
+     *   out.pr has the lines "threshold <tab> recall <tab> precision",
+     *   out.thresholds has the lines "threshold <tab> value of every metric",
+     * for the lower edges of the buckets with predictions, from the highest threshold to the lowest one. It also
+     * prints the AUC.
+     *
+     * @param out The stem of the files
+     * @param evals The metrics of out.thresholds
+     * @throws FileNotFoundException if a file can not be created
+     */
+    public void writeCurves(String out, EvaluationMetric[] evals) throws FileNotFoundException {
+        try (OutputSink roc = new OutputSink(out + ".roc");
+             OutputSink pr = new OutputSink(out + ".pr");
+             OutputSink thresholds = new OutputSink(out + ".thresholds")) {
+            roc.print(Double.POSITIVE_INFINITY);
+            roc.print("\t0.0\t0.0");
+            roc.println();
+            int TP = 0;
+            int FP = 0;
+            for (int b = 2 * NB_OF_BUCKETS - 1; b > 2; b--) {
+                if (counts[0][b] == 0 && counts[1][b] == 0)
+                    continue;
+                TP += counts[1][b];
+                FP += counts[0][b];
+                // the highest threshold below the predictions of the counts
+                double threshold = b % 2 == 1 ? lowerEdge(b / 2) : Math.nextDown(lowerEdge(b / 2));
+
+                roc.print(threshold);
+                roc.print('\t');
+                roc.print(totals[0] == 0 ? Double.NaN : (double) FP / totals[0]);
+                roc.print('\t');
+                roc.print(totals[1] == 0 ? Double.NaN : (double) TP / totals[1]);
+                roc.println();
+
+                pr.print(threshold);
+                pr.print('\t');
+                pr.print(totals[1] == 0 ? Double.NaN : (double) TP / totals[1]);
+                pr.print('\t');
+                pr.print((double) TP / (TP + FP));
+                pr.println();
+
+                thresholds.print(threshold);
+                for (EvaluationMetric metric : evals) {
+                    thresholds.print('\t');
+                    thresholds.print(metric.evaluate(TP, FP, (int) totals[0] - FP, (int) totals[1] - TP));
+                }
+                thresholds.println();
+            }
+        }
+        System.out.println("AUC: " + auc());
+    }
+
+    /**
+     * @return The bucket of a value: the buckets are in the order of the values, and hold the values from their
+     * lower edge on
+     */
+    static int bucket(double value) {
+        if (Double.isNaN(value))
+            return 0;
+        // the key of a positive value is its exponent and the first bits of its mantissa; the key of a negative value
+        // is minus that of the next larger magnitude, so that its bucket also holds the values from its lower edge on
+        long bits = Double.doubleToRawLongBits(value);
+        long key = bits >= 0 ? bits >> SHIFT : -1 - (((bits & Long.MAX_VALUE) - 1) >> SHIFT); // -0.0 is 0.0
+        if (key >= 0)
+            return 1 + NB_OF_SIGNED_BUCKETS + (int) (Math.min(Math.max(key, LOW - 1), HIGH) - (LOW - 1));
+        return 1 + (int) (Math.min(Math.max(key, -1 - HIGH), -LOW) + 1 + HIGH);
+    }
+
+    /**
+     * @return The smallest value of a bucket
+     */
+    static double lowerEdge(int bucket) {
+        if (bucket == 0)
+            return Double.NaN;
+        long key = bucket - 1 < NB_OF_SIGNED_BUCKETS ? bucket - 2 - HIGH : bucket - 2 - NB_OF_SIGNED_BUCKETS + LOW;
+        if (key == -1 - HIGH)
+            return Double.NEGATIVE_INFINITY;
+        if (key == LOW - 1)
+            return 0.0;
+        return key >= 0 ? Double.longBitsToDouble(key << SHIFT) : -Double.longBitsToDouble(-key << SHIFT);
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+
+/**
+ * This class trains a naive Bayes classifier on shards of a mail stream.
+ *
+ * The stream is split into K shards (every K'th e-mail, see MailStream.shard()), one model is trained on every shard
+ * in its own thread, and the models are merged into the first one. The counts of the naive Bayes classifiers are
+ * sums over the e-mails, so the merged model is the same as the model trained on the whole stream: only the order
+ * of the updates differs, which does not matter for the counts. This holds for the 32 and 16 bits counters of the
+ * count-min sketches, but not for the Morris counters (-counterBits=8), whose merge rounds the sums, nor for the
+ * conservative updates (-conservative), whose merged counts are larger; the merged model is then only close to the
+ * model trained on the whole stream, see CountMinSketch. Unlike the concurrent mode of the classifiers, the
+ * threads do not share any counters while they train.
+ *
+ * Usage:
+ *   java ShardedTraining nbfh <indexPath> <stopWordsPath> <logNbOfBuckets> <threshold> <maxN> <nbOfShards> [options]
+ *   java ShardedTraining nbcms <indexPath> <stopWordsPath> <logNbOfBuckets> <nbOfHashes> <threshold> <maxN> <nbOfShards> [options]
+ * Options:
+ *   -parseThreads=<n>  The number of threads that parse the e-mails of each shard
+ *   -hashNgrams        Parse the e-mails into fingerprints only
+ *   -test=<indexPath>  Evaluate the merged model on another index or compiled corpus
+ *   -check             Also train one model on the whole stream and count the predictions that differ (none,
+ *                      unless the merge is approximate, see above)
+ *   -seed=<n>          The seed of the hash functions of all the shards
+ *   -save=<modelPath>  Save the merged model to a snapshot (see ModelSnapshot)
+ *   -offHeap           Store the counts of the models outside the Java heap
+ *   -counterBits=<n>   The width of the counters of the count-min sketches: 32, 16 or 8 (Morris) bits
+ *   -conservative      Update the count-min sketches conservatively
+ */
+public class ShardedTraining {
+
+    /**
+     * Trains one model per shard of the stream, in parallel, and merges them
+     *
+     * @param stream The mail stream to train on
+     * @param nbOfShards The number of shards, and threads
+     * @param newModel Creates an untrained model
+     * @param merge Merges the second model into the first one
+     * @return The merged model
+     * @throws IOException if a shard can not be opened
+     */
+    public static <T extends OnlineTextClassifier> T train(MailStream stream, int nbOfShards, Supplier<T> newModel,
+                                                           BiConsumer<T, T> merge) throws IOException {
+        List<Callable<T>> tasks = new ArrayList<>();
+        for (int s = 0; s < nbOfShards; s++) {
+            MailStream shard = stream.shard(s, nbOfShards);
+            tasks.add(() -> {
+                T model = newModel.get();
+                for (LabeledText example : shard)
+                    model.update(example);
+                return model;
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(nbOfShards, MailStream.daemonThreads("ShardedTraining"));
+        try {
+            T merged = null;
+            for (Future<T> result : pool.invokeAll(tasks)) {
+                T model = result.get();
+                if (merged == null)
+                    merged = model;
+                else
+                    merge.accept(merged, model);
+            }
+            return merged;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while training the shards", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("training a shard failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Trains one model on the whole stream, in one thread
+     */
+    private static <T extends OnlineTextClassifier> T trainSequentially(MailStream stream, Supplier<T> newModel) {
+        T model = newModel.get();
+        for (LabeledText example : stream)
+            model.update(example);
+        return model;
+    }
+
+    /**
+     * This runs the sharded training.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || !(args[0].equals("nbfh") || args[0].equals("nbcms"))
+                || args.length < (args[0].equals("nbfh") ? 7 : 8)) {
+            System.err.println("Usage: java ShardedTraining nbfh <indexPath> <stopWordsPath> <logNbOfBuckets> <threshold> <maxN> <nbOfShards> [-parseThreads=<n>] [-hashNgrams] [-test=<indexPath>] [-check] [-seed=<n>] [-save=<modelPath>] [-offHeap]");
+            System.err.println("       java ShardedTraining nbcms <indexPath> <stopWordsPath> <logNbOfBuckets> <nbOfHashes> <threshold> <maxN> <nbOfShards> [-parseThreads=<n>] [-hashNgrams] [-test=<indexPath>] [-check] [-seed=<n>] [-save=<modelPath>] [-offHeap] [-counterBits=<n>] [-conservative]");
+            throw new Error("Expected nbfh with at least 7 arguments or nbcms with at least 8 arguments.");
+        }
+        boolean countMinSketch = args[0].equals("nbcms");
+        int a = 1;
+        String indexPath = args[a++];
+        String stopWordsPath = args[a++];
+        int logNbOfBuckets = Integer.parseInt(args[a++]);
+        int nbOfHashes = countMinSketch ? Integer.parseInt(args[a++]) : 0;
+        double threshold = Double.parseDouble(args[a++]);
+        int n = Integer.parseInt(args[a++]);
+        int nbOfShards = Integer.parseInt(args[a++]);
+        int nbOfParseThreads = HelperFunctions.getIntOption(args, a, "-parseThreads", 1);
+        boolean hashNgrams = HelperFunctions.hasFlag(args, a, "-hashNgrams");
+        boolean check = HelperFunctions.hasFlag(args, a, "-check");
+        String testPath = HelperFunctions.getStringOption(args, a, "-test", null);
+        int seed = HelperFunctions.getIntOption(args, a, "-seed", OnlineTextClassifier.DEFAULT_SEED);
+        String modelPath = HelperFunctions.getStringOption(args, a, "-save", null);
+        boolean offHeap = HelperFunctions.hasFlag(args, a, "-offHeap");
+        int counterBits = HelperFunctions.getIntOption(args, a, "-counterBits", CountMinSketch.INT_COUNTERS);
+        boolean conservative = HelperFunctions.hasFlag(args, a, "-conservative");
+
+        MailStream stream = MailStream.open(indexPath, stopWordsPath, n, nbOfParseThreads, hashNgrams);
+        MailStream testStream = testPath == null ? null
+                : MailStream.open(testPath, stopWordsPath, n, nbOfParseThreads, hashNgrams);
+
+        long start = System.nanoTime();
+        OnlineTextClassifier merged;
+        Supplier<? extends OnlineTextClassifier> newModel;
+        if (countMinSketch) {
+            Supplier<NaiveBayesCountMinSketch> newSketch = () -> new NaiveBayesCountMinSketch(nbOfHashes,
+                    logNbOfBuckets, threshold, false, seed, offHeap, counterBits, conservative);
+            newModel = newSketch;
+            merged = train(stream, nbOfShards, newSketch, NaiveBayesCountMinSketch::merge);
+        } else {
+            Supplier<NaiveBayesFeatureHashing> newHashing = () -> new NaiveBayesFeatureHashing(logNbOfBuckets,
+                    threshold, false, seed, offHeap);
+            newModel = newHashing;
+            merged = train(stream, nbOfShards, newHashing, NaiveBayesFeatureHashing::merge);
+        }
+        // the merge of Morris counters and of conservative updates is close to, but not the same as, one model
+        boolean exactMerge = !countMinSketch || (counterBits != CountMinSketch.MORRIS_COUNTERS && !conservative);
+        System.out.println("Trained " + merged.nbExamplesProcessed + " e-mails in " + nbOfShards + " shards in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        if (modelPath != null) {
+            merged.save(modelPath);
+            System.out.println("Saved the merged model to " + modelPath);
+        }
+
+        if (testStream != null)
+            evaluate(merged, testStream);
+
+        if (check) {
+            OnlineTextClassifier sequential = trainSequentially(stream, newModel);
+            int nbOfPredictions = 0;
+            int nbOfDifferences = 0;
+            for (LabeledText example : testStream != null ? testStream : stream) {
+                nbOfPredictions++;
+                if (merged.makePrediction(example.text) != sequential.makePrediction(example.text))
+                    nbOfDifferences++;
+            }
+            System.out.println("Check: " + nbOfDifferences + " of " + nbOfPredictions
+                    + " predictions differ from the model trained on the whole stream"
+                    + (exactMerge ? "" : " (the merge is approximate with -counterBits=8 or -conservative)"));
+        }
+    }
+
+    /**
+     * Prints the evaluation metrics of a model on a test stream
+     */
+    static void evaluate(OnlineTextClassifier model, MailStream testStream) {
+        ConfusionMatrix confusion = ConfusionMatrix.of(model, testStream);
+
+        EvaluationMetric[] evaluationMetrics = {new Accuracy(), new Recall(), new Precision(), new F1Score(),
+                new BalancedAccuracy()};
+        DecimalFormat df = new DecimalFormat("0.000");
+        String outline = "tested on: " + confusion.size();
+        for (EvaluationMetric metric : evaluationMetrics)
+            outline += "\t" + metric.name() + ": " + df.format(confusion.evaluate(metric));
+        System.out.println(outline);
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+
+
+/**
+ * This class implements the hash functions of a count-min sketch.
+ *
+ * All the hash functions of an n-gram are derived from a single 64-bit hash with double hashing (Kirsch and
+ * Mitzenmacher): the two halves h1 and h2 of the hash give row index h1 + i*h2 for the i'th hash function. The
+ * number of buckets is a power of two, so the index is masked instead of reduced modulo a prime, and h2 is made
+ * odd so that it is coprime with the number of buckets. This keeps the error bounds of the count-min sketch while
+ * hashing each n-gram only once instead of once per row.
+ */
+public class SketchHashing {
+
+    private final int nbOfHashes;
+    private final int mask;
+    private final int seed;
+
+    /**
+     * Initialize the hash functions
+     *
+     * @param nbOfHashes The number of hash functions (rows of the sketch)
+     * @param logNbOfBuckets The hash functions hash to the range [0,2^logNbOfBuckets-1]
+     * @param seed The seed of the hash functions
+     */
+    public SketchHashing(int nbOfHashes, int logNbOfBuckets, int seed) {
+        this.nbOfHashes = nbOfHashes;
+        this.mask = (1 << logNbOfBuckets) - 1;
+        this.seed = seed;
+    }
+
+    /**
+     * @param ngram An n-gram
+     * @return The bucket of the n-gram in each row of the sketch
+     */
+    public int[] rowIndices(String ngram) {
+        return rowIndices(NgramHash.fingerprint(ngram));
+    }
+
+    /**
+     * @param fingerprint The fingerprint of an n-gram (see NgramHash)
+     * @return The bucket of the n-gram in each row of the sketch
+     */
+    public int[] rowIndices(long fingerprint) {
+        int[] indices = new int[nbOfHashes];
+        rowIndices(fingerprint, indices);
+        return indices;
+    }
+
+    /**
+     * Computes the bucket of an n-gram in each row of the sketch, without allocating
+     *
+     * @param fingerprint The fingerprint of an n-gram (see NgramHash)
+     * @param indices The array to fill with the buckets, of length nbOfHashes at least
+     */
+    public void rowIndices(long fingerprint, int[] indices) {
+        long hash = hash(fingerprint);
+        for (int h = 0; h < nbOfHashes; h++)
+            indices[h] = bucket(hash, h);
+    }
+
+    /**
+     * @param fingerprint The fingerprint of an n-gram (see NgramHash)
+     * @param h The number of the hash function to use, in [0, nbOfHashes-1]
+     * @return The bucket of the n-gram in row h
+     */
+    public int rowIndex(long fingerprint, int h) {
+        return bucket(hash(fingerprint), h);
+    }
+
+    /**
+     * @param fingerprint The fingerprint of an n-gram (see NgramHash)
+     * @return The 64-bit hash of the n-gram, from which bucket() derives its bucket in every row
+     */
+    public long hash(long fingerprint) {
+        return NgramHash.mix(fingerprint, seed);
+    }
+
+    /**
+     * @param hash The 64-bit hash of an n-gram, see hash()
+     * @param h The number of the hash function to use, in [0, nbOfHashes-1]
+     * @return The bucket of the n-gram in row h
+     */
+    public int bucket(long hash, int h) {
+        return ((int) hash + h * ((int) (hash >>> 32) | 1)) & mask;
+    }
+
+    /**
+     * @return The number of hash functions
+     */
+    public int getNbOfHashes() {
+        return nbOfHashes;
+    }
+
+    /**
+     * @return The seed of the hash functions
+     */
+    public int getSeed() {
+        return seed;
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+
+
+/**
+ * This class caches the stems of words, so that frequent words are stemmed only once.
+ *
+ * The cache holds at most a fixed number of words. When it is full, a word is evicted with the CLOCK policy: the
+ * words sit on a circular list with a reference bit that is set on every hit, and the clock hand evicts the first
+ * word whose bit is not set, clearing the bits it passes. Words are looked up straight from a character buffer,
+ * so a hit does not allocate anything.
+ *
+ * The cache counts its hits and misses, to help choosing its size. A cache is not thread-safe; use one per thread.
+ */
+public class StemCache {
+
+    private final int capacity;
+    private final PorterStemmer stemmer = new PorterStemmer();
+
+    // The cached words, by slot
+    private final char[][] words; // words[s]: the lower-cased word in slot s (may be longer than the word)
+    private final int[] lengths;  // lengths[s]: the length of the word in slot s
+    private final int[] hashes;   // hashes[s]: the hash of the word in slot s
+    private final String[] stems; // stems[s]: the stem of the word in slot s
+    private final boolean[] referenced;
+    private int size = 0;
+    private int hand = 0;
+
+    // Open addressing (linear probing) from the hash of a word to its slot + 1; 0 is an empty entry
+    private final int[] table;
+    private final int mask;
+
+    private char[] lowerCase = new char[64];
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Initialize the cache
+     *
+     * @param capacity The maximum number of cached words. With 0, every word is stemmed.
+     */
+    public StemCache(int capacity) {
+        this.capacity = Math.max(capacity, 0);
+        this.words = new char[this.capacity][];
+        this.lengths = new int[this.capacity];
+        this.hashes = new int[this.capacity];
+        this.stems = new String[this.capacity];
+        this.referenced = new boolean[this.capacity];
+
+        int tableSize = Integer.highestOneBit(Math.max(2 * this.capacity - 1, 1)) << 1;
+        this.table = new int[tableSize];
+        this.mask = tableSize - 1;
+    }
+
+    /**
+     * Stems the word in w[offset..offset+length-1], like PorterStemmer.stem(String) does
+     *
+     * @param w The buffer with the word
+     * @param offset The offset of the word in the buffer
+     * @param length The length of the word
+     * @return The stem of the word
+     */
+    public String stem(char[] w, int offset, int length) {
+        if (lowerCase.length < length)
+            lowerCase = new char[Math.max(length, 2 * lowerCase.length)];
+        int hash = 0;
+        for (int c = 0; c < length; c++) {
+            char ch = Character.toLowerCase(w[offset + c]);
+            lowerCase[c] = ch;
+            hash = 31 * hash + ch;
+        }
+        hash ^= hash >>> 16;
+
+        if (capacity == 0) {
+            misses++;
+            return stemWord(length);
+        }
+
+        for (int i = hash & mask; table[i] != 0; i = (i + 1) & mask) {
+            int slot = table[i] - 1;
+            if (hashes[slot] == hash && lengths[slot] == length && sameWord(words[slot], length)) {
+                hits++;
+                referenced[slot] = true;
+                return stems[slot];
+            }
+        }
+
+        misses++;
+        String stem = stemWord(length);
+        insert(hash, length, stem);
+        return stem;
+    }
+
+    private boolean sameWord(char[] word, int length) {
+        for (int c = 0; c < length; c++)
+            if (word[c] != lowerCase[c])
+                return false;
+        return true;
+    }
+
+    private String stemWord(int length) {
+        stemmer.stem(lowerCase, 0, length);
+        return stemmer.toString();
+    }
+
+    /**
+     * Puts the lower-cased word in a free slot, or in the slot of the word that the clock hand evicts
+     */
+    private void insert(int hash, int length, String stem) {
+        int slot;
+        if (size < capacity) {
+            slot = size++;
+        } else {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % capacity;
+            }
+            slot = hand;
+            hand = (hand + 1) % capacity;
+            remove(slot);
+        }
+
+        if (words[slot] == null || words[slot].length < length)
+            words[slot] = new char[Math.max(length, 16)];
+        System.arraycopy(lowerCase, 0, words[slot], 0, length);
+        lengths[slot] = length;
+        hashes[slot] = hash;
+        stems[slot] = stem;
+        referenced[slot] = false;
+
+        int i = hash & mask;
+        while (table[i] != 0)
+            i = (i + 1) & mask;
+        table[i] = slot + 1;
+    }
+
+    /**
+     * Removes the table entry of a slot. The entries after it in its probe sequence are shifted back,
+     * so lookups do not need tombstones.
+     */
+    private void remove(int slot) {
+        int i = hashes[slot] & mask;
+        while (table[i] != slot + 1)
+            i = (i + 1) & mask;
+
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (table[j] == 0)
+                break;
+            int home = hashes[table[j] - 1] & mask;
+            // the entry at j can stay if its home position lies cyclically in (i, j]
+            boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stays) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = 0;
+    }
+
+    /**
+     * @return The maximum number of cached words
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of words that were found in the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of words that had to be stemmed
+     */
+    public long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+
+/**
+ * This class splits the text of an e-mail into words in a single pass.
+ *
+ * It produces the same words as cleaning the text with the regular expressions of EmlParser.cleanText and splitting
+ * it on white space: html tags, the word "spam" (in any case) and all characters that are not letters, white space
+ * or one of ._,/\ are removed, and the words are the remaining runs of letters.
+ *
+ * The words are written into a reusable character buffer, so tokenizing a text does not allocate once the buffers
+ * are large enough. A tokenizer is not thread-safe; use one per thread.
+ */
+public class Tokenizer {
+
+    private char[] chars = new char[4096];
+    private int[] ends = new int[512]; // ends[t]: the end of word t in chars, word t starts at ends[t-1] (or 0)
+    private int nbOfWords = 0;
+
+    /**
+     * Splits the text into words, replacing the words of the previous text
+     *
+     * @param text The subject and body of an e-mail
+     */
+    public void tokenize(CharSequence text) {
+        int length = text.length();
+        if (chars.length < length)
+            chars = new char[Math.max(length, 2 * chars.length)];
+
+        int nbOfChars = 0;
+        nbOfWords = 0;
+        boolean inWord = false;
+        int noTagBefore = 0; // a '<' before this position has no matching '>' on its line
+
+        int i = 0;
+        while (i < length) {
+            char ch = text.charAt(i);
+
+            if (ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z') {
+                // "spam" is removed, without ending the word
+                if ((ch | 0x20) == 's' && i + 3 < length && (text.charAt(i + 1) | 0x20) == 'p'
+                        && (text.charAt(i + 2) | 0x20) == 'a' && (text.charAt(i + 3) | 0x20) == 'm') {
+                    i += 4;
+                    continue;
+                }
+                chars[nbOfChars++] = ch;
+                inWord = true;
+            } else if (ch == '<' && i >= noTagBefore) {
+                // an html tag is the shortest "<...>" on one line
+                int end = i + 1;
+                while (end < length && text.charAt(end) != '>' && !isLineTerminator(text.charAt(end)))
+                    end++;
+                if (end < length && text.charAt(end) == '>')
+                    i = end;
+                else
+                    noTagBefore = end;
+            } else if (isWhitespace(ch) || ch == '.' || ch == '_' || ch == ',' || ch == '/' || ch == '\\') {
+                if (inWord)
+                    endWord(nbOfChars);
+                inWord = false;
+            }
+            // any other character is removed, without ending the word
+            i++;
+        }
+        if (inWord)
+            endWord(nbOfChars);
+    }
+
+    private void endWord(int end) {
+        if (nbOfWords == ends.length)
+            ends = Arrays.copyOf(ends, 2 * ends.length);
+        ends[nbOfWords++] = end;
+    }
+
+    /**
+     * The white space characters of the regular expression \s
+     */
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+    }
+
+    /**
+     * The characters that the regular expression '.' does not match
+     */
+    private static boolean isLineTerminator(char ch) {
+        return ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029';
+    }
+
+    /**
+     * @return The number of words in the last tokenized text
+     */
+    public int getNbOfWords() {
+        return nbOfWords;
+    }
+
+    /**
+     * Returns a reference to the buffer with the words. Word t consists of the characters
+     * getStart(t) up to (but not including) getEnd(t).
+     */
+    public char[] getBuffer() {
+        return chars;
+    }
+
+    /**
+     * @param t The index of a word
+     * @return The offset of the first character of word t in the buffer
+     */
+    public int getStart(int t) {
+        return t == 0 ? 0 : ends[t - 1];
+    }
+
+    /**
+     * @param t The index of a word
+     * @return The offset after the last character of word t in the buffer
+     */
+    public int getEnd(int t) {
+        return ends[t];
+    }
+
+    /**
+     * @param t The index of a word
+     * @return Word t as a string
+     */
+    public String getWord(int t) {
+        int start = getStart(t);
+        return new String(chars, start, ends[t] - start);
+    }
+
+    /**
+     * Checks that the tokenizer produces the same words as the regular expressions of EmlParser for all the e-mails
+     * in the given folders, e.g. data/dataSubset. Index files are skipped.
+     *
+     * Usage: Tokenizer folder folder ...
+     */
+    public static void main(String[] args) throws IOException {
+        Tokenizer tokenizer = new Tokenizer();
+        int nbOfMails = 0;
+        int nbOfDifferences = 0;
+        for (String folder : args) {
+            List<Path> mails;
+            try (Stream<Path> files = Files.walk(Paths.get(folder))) {
+                mails = files.filter(Files::isRegularFile)
+                        .filter(path -> !path.getFileName().toString().startsWith("index"))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            for (Path mail : mails) {
+                String text;
+                try {
+                    text = EmlParser.getSubjectAndBody(mail.toString());
+                } catch (Exception e) {
+                    continue; // EmlParser skips e-mails it can not read
+                }
+                nbOfMails++;
+
+                String[] expected = Arrays.stream(EmlParser.cleanText(text).split("\\s+"))
+                        .filter(word -> !word.isEmpty())
+                        .toArray(String[]::new);
+                tokenizer.tokenize(text);
+                String[] actual = new String[tokenizer.getNbOfWords()];
+                for (int t = 0; t < actual.length; t++)
+                    actual[t] = tokenizer.getWord(t);
+
+                if (!Arrays.equals(expected, actual)) {
+                    nbOfDifferences++;
+                    System.out.println("different words for " + mail);
+                }
+            }
+        }
+        System.out.println(nbOfMails + " e-mails, " + nbOfDifferences + " with different words");
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Written by Victor Gueorguiev, 2020
+ */
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+
+
+/**
+ * This class monitors a classifier with the metrics of its recent predictions, reported at a fixed period.
+ *
+ * The learning curves of makeLearningCurve() evaluate batches that double in size, so late changes of the accuracy
+ * show up late and at ever longer intervals. Here every prediction updates two confusion matrices:
+ *   - over a sliding window of the last windowSize predictions, kept in a ring buffer of their outcomes (TP, FP, TN or
+ *     FN), so that the outcome that leaves the window is taken out of the counts;
+ *   - with exponential decay, in which a prediction weighs half as much after halfLife more predictions. Instead of
+ *     decaying all the counts, every new prediction gets a weight that is 1/decay larger than that of the previous one,
+ *     and the counts are scaled back down once the weights grow too large, which leaves their ratios the same.
+ * Both take constant time per prediction. Every period predictions, all the metrics of both matrices are written to
+ * the files "out + .window. + scoreName" and "out + .decayed. + scoreName", in lines of the form
+ * "nbOfPredictions <tab> score".
+ *
+ * The metrics take whole counts, so the decayed counts are scaled to a total of DECAYED_TOTAL and rounded; the metrics
+ * are ratios of the counts, which the scaling does not change.
+ */
+public class WindowedEvaluation implements Closeable {
+
+    private static final int TP = 0;
+    private static final int FP = 1;
+    private static final int TN = 2;
+    private static final int FN = 3;
+
+    static final double DECAYED_TOTAL = 1e9;
+    private static final double MAX_WEIGHT = 1e200;
+
+    private final EvaluationMetric[] evals;
+    private final int period;
+
+    private final byte[] window; // the outcomes of the last predictions, a ring buffer
+    private int next = 0; // the position of the next outcome in the ring buffer
+    private final int[] windowCounts = new int[4];
+
+    private final double growth; // 1 / decay
+    private double weight = 1; // the weight of the next prediction
+    private final double[] decayedCounts = new double[4];
+
+    private long nbOfPredictions = 0;
+    private final OutputSink[] windowWriters;
+    private final OutputSink[] decayedWriters;
+
+    /**
+     * @param evals The evaluation metrics
+     * @param windowSize The number of predictions in the sliding window
+     * @param halfLife The number of predictions after which the weight of a prediction is halved
+     * @param period How often the metrics are reported, in number of predictions
+     * @param out The stem of the output files
+     * @throws FileNotFoundException if an output file can not be created
+     */
+    public WindowedEvaluation(EvaluationMetric[] evals, int windowSize, double halfLife, int period, String out)
+            throws FileNotFoundException {
+        if (windowSize < 1 || !(halfLife > 0) || period < 1)
+            throw new IllegalArgumentException("the window size, half-life and period must be positive");
+        this.evals = evals;
+        this.period = period;
+        window = new byte[windowSize];
+        growth = Math.pow(2, 1 / halfLife);
+        windowWriters = new OutputSink[evals.length];
+        decayedWriters = new OutputSink[evals.length];
+        try {
+            for (int e = 0; e < evals.length; e++) {
+                windowWriters[e] = new OutputSink(out + ".window." + evals[e].name());
+                decayedWriters[e] = new OutputSink(out + ".decayed." + evals[e].name());
+            }
+        } catch (FileNotFoundException | RuntimeException e) {
+            close(); // the files that were created
+            throw e;
+        }
+    }
+
+    /**
+     * Counts a prediction, and reports the metrics at the end of every period
+     *
+     * @param label The true class
+     * @param predictedClass The predicted class
+     */
+    public void add(int label, int predictedClass) {
+        int outcome = predictedClass == 1 ? (label == 1 ? TP : FP) : (label == 0 ? TN : FN);
+
+        if (nbOfPredictions >= window.length)
+            windowCounts[window[next]]--;
+        window[next] = (byte) outcome;
+        windowCounts[outcome]++;
+        if (++next == window.length)
+            next = 0;
+
+        decayedCounts[outcome] += weight;
+        weight *= growth;
+        if (weight > MAX_WEIGHT) {
+            for (int k = 0; k < 4; k++)
+                decayedCounts[k] /= weight;
+            weight = 1;
+        }
+
+        if (++nbOfPredictions % period == 0)
+            report();
+    }
+
+    /**
+     * @return The number of predictions so far
+     */
+    public long getNbOfPredictions() {
+        return nbOfPredictions;
+    }
+
+    /**
+     * @return The value of a metric over the sliding window
+     */
+    public double evaluateWindow(EvaluationMetric metric) {
+        return metric.evaluate(windowCounts[TP], windowCounts[FP], windowCounts[TN], windowCounts[FN]);
+    }
+
+    /**
+     * @return The value of a metric with exponential decay
+     */
+    public double evaluateDecayed(EvaluationMetric metric) {
+        double scale = DECAYED_TOTAL / (decayedCounts[TP] + decayedCounts[FP] + decayedCounts[TN] + decayedCounts[FN]);
+        return metric.evaluate((int) Math.round(decayedCounts[TP] * scale), (int) Math.round(decayedCounts[FP] * scale),
+                (int) Math.round(decayedCounts[TN] * scale), (int) Math.round(decayedCounts[FN] * scale));
+    }
+
+    private void report() {
+        for (int e = 0; e < evals.length; e++) {
+            windowWriters[e].print(nbOfPredictions);
+            windowWriters[e].print('\t');
+            windowWriters[e].print(evaluateWindow(evals[e]));
+            windowWriters[e].println();
+            decayedWriters[e].print(nbOfPredictions);
+            decayedWriters[e].print('\t');
+            decayedWriters[e].print(evaluateDecayed(evals[e]));
+            decayedWriters[e].println();
+        }
+    }
+
+    /**
+     * Writes the rest of the reports and closes the files. All the files are closed, even if one of them could not be
+     * written.
+     *
+     * @throws java.io.UncheckedIOException if a file could not be written
+     */
+    @Override
+    public void close() {
+        RuntimeException error = null;
+        for (OutputSink[] writers : new OutputSink[][]{windowWriters, decayedWriters}) {
+            for (OutputSink writer : writers) {
+                try {
+                    if (writer != null)
+                        writer.close();
+                } catch (RuntimeException e) {
+                    if (error == null)
+                        error = e;
+                }
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+}